@@ -0,0 +1,423 @@
+package frc.robot.Toolkit;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.wpi.first.wpilibj.util.Color;
+import frc.robot.Toolkit.CT_ColorSensor.ColorTarget;
+
+/**
+ * Records color sensor samples while an operator holds each color in front of the sensor,
+ * then fits one centroid per color with k-means over normalized RGB and writes a target file
+ * that CT_ColorSensor loads at startup.
+ *
+ * Use:
+ * beginTarget("Blue", Color.kBlue), wait a few seconds while moving the blue target around,
+ * then do the same for every other color, call endTarget() and saveTargets(fit(), ...).
+ *
+ * Samples can also be saved with saveSamples() and fitted later on a laptop by running main()
+ * with the sample file, no robot needed.
+ */
+public class CT_ColorCalibrator {
+
+    /**
+     * Where CT_ColorSensor looks for targets at startup.
+     */
+    public static final String k_defaultTargetFile = "/home/lvuser/colortargets.csv";
+
+    private static final int k_defaultCapacity = 4096;
+    private static final int k_maxIterations = 50;
+    private static final double k_samplePeriod = 0.025;
+    private static final int k_unlabeled = -1;
+
+    private final int m_capacity;
+    private final int[] m_samples;
+    private final byte[] m_labels;
+    private int m_head;
+    private int m_size;
+
+    private final List<String> m_targetNames = new ArrayList<>();
+    private final List<Color> m_targetOutputs = new ArrayList<>();
+    private volatile int m_currentLabel = k_unlabeled;
+
+    private final CT_ColorSensor m_sensor;
+    private CT_I2CBus.PeriodicRead m_recording;
+    private final int[] m_rawColor = new int[3];
+
+    /**
+     * Creates a calibrator that records from the given sensor in the background.
+     *
+     * @param sensor the sensor to calibrate.
+     */
+    public CT_ColorCalibrator(CT_ColorSensor sensor) {
+        this(sensor, k_defaultCapacity);
+    }
+
+    /**
+     * Creates a calibrator that records from the given sensor in the background.
+     *
+     * @param sensor the sensor to calibrate, or null for fitting recorded samples offline.
+     * @param capacity the amount of samples kept, older samples are overwritten once full.
+     */
+    public CT_ColorCalibrator(CT_ColorSensor sensor, int capacity) {
+        m_capacity = capacity;
+        m_samples = new int[capacity * 3];
+        m_labels = new byte[capacity];
+        m_sensor = sensor;
+    }
+
+    /**
+     * Starts recording samples for a color. Hold the color in front of the sensor until endTarget()
+     * or the next beginTarget() is called. Calling this again with a name already recorded adds to it.
+     *
+     * @param name the name of the color, given back by getMatchedColorString().
+     * @param output the color given back by getMatchedColor(). Color.kBlue, Color.kRed, etc.
+     */
+    public synchronized void beginTarget(String name, Color output) {
+        m_currentLabel = labelOf(name, output);
+        if (m_sensor != null && m_recording == null) {
+            m_recording = m_sensor.addPeriodic(k_samplePeriod, this::recordSample);
+        }
+    }
+
+    /**
+     * Stops recording samples.
+     */
+    public synchronized void endTarget() {
+        if (m_recording != null) {
+            m_recording.cancel();
+            m_recording = null;
+        }
+        m_currentLabel = k_unlabeled;
+    }
+
+    /**
+     * Removes every recorded sample and color.
+     */
+    public synchronized void clear() {
+        endTarget();
+        m_head = 0;
+        m_size = 0;
+        m_targetNames.clear();
+        m_targetOutputs.clear();
+    }
+
+    /**
+     * Gets the amount of samples currently recorded.
+     */
+    public synchronized int getSampleCount() {
+        return m_size;
+    }
+
+    /**
+     * Adds a sample to the ring buffer. The color does not need to be normalized.
+     *
+     * @param label the index of the color the sample belongs to, or -1 if unknown.
+     */
+    public synchronized void addSample(int red, int green, int blue, int label) {
+        int index = (m_head + m_size) % m_capacity;
+        if (m_size == m_capacity) {
+            m_head = (m_head + 1) % m_capacity;
+        } else {
+            m_size++;
+        }
+        m_samples[index * 3] = red;
+        m_samples[index * 3 + 1] = green;
+        m_samples[index * 3 + 2] = blue;
+        m_labels[index] = (byte) label;
+    }
+
+    /**
+     * Fits one centroid per recorded color with k-means over normalized RGB. Each centroid starts at the
+     * average of the samples recorded for its color, and every sample is then assigned to the nearest centroid
+     * until the assignments stop changing.
+     *
+     * @return one target per recorded color, in the order the colors were first recorded.
+     */
+    public synchronized ColorTarget[] fit() {
+        int k = m_targetNames.size();
+        double[] centroids = new double[k * 3];
+        int[] counts = new int[k];
+        int[] assignments = new int[m_size];
+
+        for (int i = 0; i < m_size; i++) {
+            int label = m_labels[(m_head + i) % m_capacity];
+            assignments[i] = label;
+            if (label != k_unlabeled && addNormalized(centroids, label, i)) {
+                counts[label]++;
+            }
+        }
+        averageCentroids(centroids, counts);
+
+        for (int iteration = 0; iteration < k_maxIterations; iteration++) {
+            boolean changed = false;
+            double[] sums = new double[k * 3];
+            int[] sumCounts = new int[k];
+
+            for (int i = 0; i < m_size; i++) {
+                int nearest = nearestCentroid(centroids, counts, i);
+                if (nearest != assignments[i]) {
+                    assignments[i] = nearest;
+                    changed = true;
+                }
+                if (nearest != k_unlabeled && addNormalized(sums, nearest, i)) {
+                    sumCounts[nearest]++;
+                }
+            }
+
+            // Colors that lost all their samples keep their last centroid.
+            for (int c = 0; c < k; c++) {
+                if (sumCounts[c] > 0) {
+                    centroids[c * 3] = sums[c * 3] / sumCounts[c];
+                    centroids[c * 3 + 1] = sums[c * 3 + 1] / sumCounts[c];
+                    centroids[c * 3 + 2] = sums[c * 3 + 2] / sumCounts[c];
+                    counts[c] = sumCounts[c];
+                }
+            }
+
+            if (!changed) {
+                break;
+            }
+        }
+
+        List<ColorTarget> targets = new ArrayList<>();
+        for (int c = 0; c < k; c++) {
+            if (counts[c] > 0) {
+                Color reference = new Color(centroids[c * 3], centroids[c * 3 + 1], centroids[c * 3 + 2]);
+                targets.add(new ColorTarget(m_targetNames.get(c), reference, m_targetOutputs.get(c)));
+            } else {
+                CT_Scribe.printWarning("CT_ColorCalibrator: no samples recorded for " + m_targetNames.get(c) + ", skipping it.");
+            }
+        }
+        return targets.toArray(new ColorTarget[0]);
+    }
+
+    /**
+     * Fits the recorded samples and loads the result straight into the sensor being calibrated.
+     *
+     * @return the fitted targets.
+     */
+    public ColorTarget[] fitAndApply() {
+        ColorTarget[] targets = fit();
+        if (m_sensor != null && targets.length > 0) {
+            m_sensor.setTargets(targets);
+        }
+        return targets;
+    }
+
+    /**
+     * Saves the recorded samples so they can be fitted again later.
+     * The first lines name each color and its output, every other line is "label,red,green,blue".
+     */
+    public synchronized boolean saveSamples(File file) {
+        List<String> lines = new ArrayList<>();
+        for (int c = 0; c < m_targetNames.size(); c++) {
+            Color output = m_targetOutputs.get(c);
+            lines.add("#target," + m_targetNames.get(c) + "," + output.red + "," + output.green + "," + output.blue);
+        }
+        for (int i = 0; i < m_size; i++) {
+            int index = (m_head + i) % m_capacity;
+            lines.add(m_labels[index] + "," + m_samples[index * 3] + "," + m_samples[index * 3 + 1] + "," + m_samples[index * 3 + 2]);
+        }
+
+        try {
+            Files.write(file.toPath(), lines, StandardCharsets.UTF_8);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Adds the samples from a file written by saveSamples() to this calibrator.
+     * Lines with numbers that can't be read are reported and skipped.
+     */
+    public synchronized boolean loadSamples(File file) {
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+
+        // Labels in the file are remapped in case this calibrator already has colors.
+        List<Integer> labelMap = new ArrayList<>();
+        for (String line : lines) {
+            String[] parts = line.trim().split(",");
+            try {
+                if (parts[0].equals("#target") && parts.length == 5) {
+                    Color output = new Color(Double.parseDouble(parts[2]), Double.parseDouble(parts[3]), Double.parseDouble(parts[4]));
+                    labelMap.add(labelOf(parts[1], output));
+                } else if (parts.length == 4 && !parts[0].startsWith("#")) {
+                    int label = Integer.parseInt(parts[0]);
+                    addSample(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]), Integer.parseInt(parts[3]),
+                        label >= 0 && label < labelMap.size() ? labelMap.get(label) : k_unlabeled);
+                }
+            } catch (NumberFormatException e) {
+                CT_Scribe.printWarning("CT_ColorCalibrator: skipping malformed line in " + file + ": " + line);
+                if (parts[0].equals("#target")) {
+                    // Keeps the labels of the colors after it lined up, this color's samples load unlabeled.
+                    labelMap.add(k_unlabeled);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes a target file that CT_ColorSensor can load with loadTargets().
+     * Every line is "name,referenceRed,referenceGreen,referenceBlue,outputRed,outputGreen,outputBlue".
+     */
+    public static boolean saveTargets(ColorTarget[] targets, File file) {
+        List<String> lines = new ArrayList<>();
+        lines.add("# name,referenceRed,referenceGreen,referenceBlue,outputRed,outputGreen,outputBlue");
+        for (ColorTarget target : targets) {
+            Color reference = target.getReference();
+            Color output = target.getOutput();
+            lines.add(target.getName() + "," + reference.red + "," + reference.green + "," + reference.blue
+                + "," + output.red + "," + output.green + "," + output.blue);
+        }
+
+        try {
+            Files.write(file.toPath(), lines, StandardCharsets.UTF_8);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Reads a target file written by saveTargets().
+     *
+     * @return the targets, or null if the file doesn't exist or couldn't be read.
+     */
+    public static ColorTarget[] loadTargets(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+
+        List<ColorTarget> targets = new ArrayList<>();
+        try {
+            for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+                String[] parts = line.trim().split(",");
+                if (parts.length != 7 || parts[0].startsWith("#")) {
+                    continue;
+                }
+                Color reference = new Color(Double.parseDouble(parts[1]), Double.parseDouble(parts[2]), Double.parseDouble(parts[3]));
+                Color output = new Color(Double.parseDouble(parts[4]), Double.parseDouble(parts[5]), Double.parseDouble(parts[6]));
+                targets.add(new ColorTarget(parts[0], reference, output));
+            }
+        } catch (IOException | NumberFormatException e) {
+            e.printStackTrace();
+            return null;
+        }
+        return targets.isEmpty() ? null : targets.toArray(new ColorTarget[0]);
+    }
+
+    /**
+     * Fits a recorded sample file offline.
+     * Usage: CT_ColorCalibrator samples.csv [targets.csv]
+     */
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.out.println("Usage: CT_ColorCalibrator samples.csv [targets.csv]");
+            return;
+        }
+
+        CT_ColorCalibrator calibrator = new CT_ColorCalibrator(null, k_defaultCapacity * 16);
+        if (!calibrator.loadSamples(new File(args[0]))) {
+            return;
+        }
+
+        ColorTarget[] targets = calibrator.fit();
+        for (ColorTarget target : targets) {
+            Color reference = target.getReference();
+            System.out.println(String.format("%s: %.3f, %.3f, %.3f", target.getName(), reference.red, reference.green, reference.blue));
+        }
+        if (args.length > 1) {
+            saveTargets(targets, new File(args[1]));
+        }
+    }
+
+    /**
+     * Runs on the I2C bus thread while a color is being recorded.
+     */
+    private void recordSample() {
+        int label = m_currentLabel;
+        if (label != k_unlabeled && m_sensor.readRawColor(m_rawColor)) {
+            addSample(m_rawColor[0], m_rawColor[1], m_rawColor[2], label);
+        }
+    }
+
+    private int labelOf(String name, Color output) {
+        int label = m_targetNames.indexOf(name);
+        if (label == k_unlabeled) {
+            if (m_targetNames.size() == Byte.MAX_VALUE) {
+                throw new IllegalArgumentException("CT_ColorCalibrator supports at most " + Byte.MAX_VALUE + " colors");
+            }
+            m_targetNames.add(name);
+            m_targetOutputs.add(output);
+            label = m_targetNames.size() - 1;
+        }
+        return label;
+    }
+
+    private int nearestCentroid(double[] centroids, int[] counts, int sample) {
+        int index = ((m_head + sample) % m_capacity) * 3;
+        double magnitude = (double) m_samples[index] + m_samples[index + 1] + m_samples[index + 2];
+        if (magnitude <= 0) {
+            return k_unlabeled;
+        }
+
+        int nearest = k_unlabeled;
+        double nearestDistance = Double.MAX_VALUE;
+        for (int c = 0; c < counts.length; c++) {
+            if (counts[c] == 0) {
+                continue;
+            }
+            double redDiff = m_samples[index] / magnitude - centroids[c * 3];
+            double greenDiff = m_samples[index + 1] / magnitude - centroids[c * 3 + 1];
+            double blueDiff = m_samples[index + 2] / magnitude - centroids[c * 3 + 2];
+            double distance = redDiff * redDiff + greenDiff * greenDiff + blueDiff * blueDiff;
+            if (distance < nearestDistance) {
+                nearestDistance = distance;
+                nearest = c;
+            }
+        }
+        return nearest;
+    }
+
+    /**
+     * Adds the normalized sample to the centroid sums.
+     *
+     * @return false if the sample was black and couldn't be normalized.
+     */
+    private boolean addNormalized(double[] sums, int centroid, int sample) {
+        int index = ((m_head + sample) % m_capacity) * 3;
+        double magnitude = (double) m_samples[index] + m_samples[index + 1] + m_samples[index + 2];
+        if (magnitude <= 0) {
+            return false;
+        }
+        sums[centroid * 3] += m_samples[index] / magnitude;
+        sums[centroid * 3 + 1] += m_samples[index + 1] / magnitude;
+        sums[centroid * 3 + 2] += m_samples[index + 2] / magnitude;
+        return true;
+    }
+
+    private static void averageCentroids(double[] centroids, int[] counts) {
+        for (int c = 0; c < counts.length; c++) {
+            if (counts[c] > 0) {
+                centroids[c * 3] /= counts[c];
+                centroids[c * 3 + 1] /= counts[c];
+                centroids[c * 3 + 2] /= counts[c];
+            }
+        }
+    }
+}
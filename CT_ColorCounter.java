@@ -0,0 +1,195 @@
+package frc.robot.Toolkit;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.revrobotics.ColorSensorV3.ColorSensorMeasurementRate;
+import com.revrobotics.ColorSensorV3.ColorSensorResolution;
+import com.revrobotics.ColorSensorV3.GainFactor;
+
+import edu.wpi.first.wpilibj.Timer;
+
+/**
+ * Counts color changes seen by a CT_ColorSensor on a background thread, for measuring how far a colored wheel has turned.
+ * The sensor is switched to its fastest measurement rate (25ms at 13 bit resolution) and every measurement
+ * is read on the I2C bus thread as soon as it is ready, no matter how long the robot loop takes.
+ *
+ * The counter is written only by the sampling thread and read with plain atomic loads, so reads never block.
+ */
+public class CT_ColorCounter {
+
+    /**
+     * The fastest the color sensor can produce new measurements.
+     */
+    private static final double k_samplePeriod = 0.025;
+    /**
+     * How many of the latest transitions are used to calculate the rate.
+     */
+    private static final int k_rateWindow = 8;
+    private static final int k_historySize = 32;
+
+    private final CT_ColorSensor m_sensor;
+    private final CT_ColorFilter m_filter;
+    private final CT_ColorFilter.ColorTransitionListener m_listener;
+    private CT_I2CBus.PeriodicRead m_sampling;
+    private final int m_segmentsPerRevolution;
+
+    private final AtomicLong m_transitions = new AtomicLong();
+    private final AtomicLongArray m_transitionTimes = new AtomicLongArray(k_historySize);
+    private volatile long m_resetOffset;
+    private volatile boolean m_isCounting;
+    private boolean m_isClosed;
+    // Only used on the sampling thread.
+    private int m_lastCountedIndex = CT_ColorFilter.k_noColor;
+
+    /**
+     * Creates a counter for the given sensor. Use start() to begin counting.
+     *
+     * @param sensor the sensor looking at the wheel.
+     * @param segmentsPerRevolution amount of colored segments on the wheel.
+     */
+    public CT_ColorCounter(CT_ColorSensor sensor, int segmentsPerRevolution) {
+        m_sensor = sensor;
+        m_segmentsPerRevolution = segmentsPerRevolution;
+
+        // A short window and no dwell time, a segment can pass by in only a few samples at speed.
+        m_filter = new CT_ColorFilter(sensor).setWindowSize(3).setMinDwellTime(0);
+        m_listener = new CT_ColorFilter.ColorTransitionListener() {
+            @Override
+            public void onColorEnter(int targetIndex, double timestamp) {
+                // A short dip to no color and back is the same segment, so only a different color counts.
+                if (targetIndex != m_lastCountedIndex) {
+                    m_lastCountedIndex = targetIndex;
+                    recordTransition(timestamp);
+                }
+            }
+        };
+        m_filter.addListener(m_listener);
+    }
+
+    /**
+     * Switches the sensor to its fastest measurement rate and starts sampling in the background.
+     */
+    public synchronized void start() {
+        if (!m_isCounting && !m_isClosed) {
+            m_sensor.configureColorSensor(ColorSensorResolution.kColorSensorRes13bit,
+                ColorSensorMeasurementRate.kColorRate25ms, GainFactor.kGain3x);
+            m_sampling = m_sensor.addPeriodic(k_samplePeriod, () -> m_sensor.sampleInto(m_filter));
+            m_isCounting = true;
+        }
+    }
+
+    /**
+     * Stops sampling. The counts are kept.
+     */
+    public synchronized void stop() {
+        if (m_sampling != null) {
+            m_sampling.cancel();
+            m_sampling = null;
+        }
+        m_isCounting = false;
+    }
+
+    /**
+     * Stops sampling for good and detaches from the sensor's filter. The counter can't be started again.
+     */
+    public synchronized void close() {
+        stop();
+        m_filter.removeListener(m_listener);
+        m_isClosed = true;
+    }
+
+    public boolean isCounting() {
+        return m_isCounting;
+    }
+
+    /**
+     * Sets the segment count and position back to 0. The rate only uses transitions seen after the reset.
+     */
+    public void reset() {
+        m_resetOffset = m_transitions.get();
+    }
+
+    /**
+     * Gets the amount of color changes seen since the counter was created or reset.
+     *
+     * @return the amount of segments that have passed the sensor.
+     */
+    public long getSegmentsSeen() {
+        return m_transitions.get() - m_resetOffset;
+    }
+
+    /**
+     * Gets how far the wheel has turned since the counter was created or reset.
+     * The direction of the wheel can't be seen by the sensor, so this is always positive.
+     *
+     * @return the amount of revolutions.
+     */
+    public double getRevolutions() {
+        return (double) getSegmentsSeen() / m_segmentsPerRevolution;
+    }
+
+    /**
+     * Gets the rate segments are passing the sensor, from the time between the latest transitions.
+     * When no transitions have been seen for longer than expected, the rate falls off towards 0.
+     *
+     * @return the rate in segments per second.
+     */
+    public double getSegmentRate() {
+        while (true) {
+            long transitions = m_transitions.get();
+            long sinceReset = transitions - m_resetOffset;
+            if (sinceReset < 2) {
+                return 0;
+            }
+
+            int span = (int) Math.min(sinceReset - 1, k_rateWindow);
+            long newest = m_transitionTimes.get((int) ((transitions - 1) % k_historySize));
+            long oldest = m_transitionTimes.get((int) ((transitions - 1 - span) % k_historySize));
+
+            // Retry if the sampling thread lapped the history while it was being read.
+            if (m_transitions.get() - transitions > k_historySize - k_rateWindow - 1) {
+                continue;
+            }
+
+            double elapsed = (newest - oldest) / 1e6;
+            if (elapsed <= 0) {
+                return 0;
+            }
+            double sinceNewest = Timer.getFPGATimestamp() - newest / 1e6;
+            return Math.min(span / elapsed, 1 / Math.max(sinceNewest, 1e-6));
+        }
+    }
+
+    /**
+     * Gets the rate the wheel is turning.
+     *
+     * @return the rate in revolutions per second.
+     */
+    public double getRevolutionsPerSecond() {
+        return getSegmentRate() / m_segmentsPerRevolution;
+    }
+
+    /**
+     * Gets the time of the latest color change.
+     *
+     * @return the FPGA time in seconds, or 0 if no changes have been seen since the counter was created or reset.
+     */
+    public double getLastTransitionTime() {
+        long transitions = m_transitions.get();
+        if (transitions == m_resetOffset) {
+            return 0;
+        }
+        return m_transitionTimes.get((int) ((transitions - 1) % k_historySize)) / 1e6;
+    }
+
+    /**
+     * Called on the sampling thread. The time is stored before the count is bumped, so readers
+     * never see a count without its time.
+     */
+    private void recordTransition(double timestamp) {
+        long transitions = m_transitions.get();
+        m_transitionTimes.set((int) (transitions % k_historySize), (long) (timestamp * 1e6));
+        m_transitions.set(transitions + 1);
+    }
+}
@@ -0,0 +1,293 @@
+package frc.robot.Toolkit;
+
+/**
+ * Turns the noisy per-sample matches of a CT_ColorSensor into a stable color.
+ * Samples can be filtered either with a majority vote over a sliding window or with an
+ * exponential moving average of the color itself. On top of that, a sample must reach the
+ * confidence threshold to count, and a new color must hold for the minimum dwell time before
+ * the filtered color changes. Listeners are told when a color is entered and exited.
+ *
+ * Nothing is allocated per sample, so update() is safe to call from a periodic or a fast sampling thread.
+ */
+public class CT_ColorFilter {
+
+    /**
+     * Largest window the majority vote can use.
+     */
+    public static final int k_maxWindowSize = 64;
+
+    /**
+     * Index used when no color is stable, or a sample fell under the confidence threshold.
+     */
+    public static final int k_noColor = -1;
+
+    // One vote slot per possible target, plus one at the end for samples that didn't match anything.
+    private static final int k_unknownSlot = Byte.MAX_VALUE;
+
+    private final CT_ColorSensor m_sensor;
+
+    private FilterMode m_filterMode = FilterMode.MajorityVote;
+    private int m_windowSize = 5;
+    private double m_minConfidence = 0.9;
+    private double m_minDwellSeconds = 0.04;
+    private double m_averageGain = 0.3;
+
+    private final byte[] m_window = new byte[k_maxWindowSize];
+    private final int[] m_votes = new int[k_unknownSlot + 1];
+    private int m_windowIndex;
+    private int m_windowFill;
+    private int m_majoritySlot = k_noColor;
+
+    private double m_averageRed;
+    private double m_averageGreen;
+    private double m_averageBlue;
+    private boolean m_hasAverage;
+
+    private int m_stableIndex = k_noColor;
+    private int m_pendingIndex = k_noColor;
+    private double m_pendingSince;
+
+    private volatile ColorTransitionListener[] m_listeners = new ColorTransitionListener[0];
+
+    /**
+     * How the samples are combined before the confidence threshold and dwell time are applied.
+     */
+    public enum FilterMode {
+        /**
+         * Each sample is matched on its own and the color with more than half the votes in the window wins.
+         */
+        MajorityVote,
+        /**
+         * The raw color is smoothed with an exponential moving average and the average is matched.
+         */
+        ExponentialAverage
+    }
+
+    /**
+     * Receives the color changes of a CT_ColorFilter. Both methods are called from whatever
+     * thread is calling update(), so they should return quickly.
+     */
+    public interface ColorTransitionListener {
+        /**
+         * Called once the filtered color becomes the given target.
+         *
+         * @param targetIndex index into CT_ColorSensor.getTargets().
+         * @param timestamp FPGA time of the sample that completed the transition.
+         */
+        default void onColorEnter(int targetIndex, double timestamp) {}
+
+        /**
+         * Called once the filtered color stops being the given target.
+         *
+         * @param targetIndex index into CT_ColorSensor.getTargets().
+         * @param timestamp FPGA time of the sample that completed the transition.
+         */
+        default void onColorExit(int targetIndex, double timestamp) {}
+    }
+
+    /**
+     * Creates a filter that matches samples against the targets of the given sensor.
+     *
+     * @param sensor the sensor whose targets are used for matching.
+     */
+    public CT_ColorFilter(CT_ColorSensor sensor) {
+        m_sensor = sensor;
+    }
+
+    /**
+     * Sets how samples are combined. Resets the filter.
+     */
+    public CT_ColorFilter setFilterMode(FilterMode filterMode) {
+        m_filterMode = filterMode;
+        reset();
+        return this;
+    }
+
+    /**
+     * Sets the amount of samples the majority vote looks at. Resets the filter.
+     *
+     * @param windowSize amount of samples, from 1 to k_maxWindowSize.
+     */
+    public CT_ColorFilter setWindowSize(int windowSize) {
+        m_windowSize = Math.min(Math.max(windowSize, 1), k_maxWindowSize);
+        reset();
+        return this;
+    }
+
+    /**
+     * Sets the confidence a sample needs for its match to count.
+     *
+     * @param minConfidence confidence from 0 to 1, see CT_ColorSensor.getConfidence().
+     */
+    public CT_ColorFilter setMinConfidence(double minConfidence) {
+        m_minConfidence = minConfidence;
+        return this;
+    }
+
+    /**
+     * Sets how long a new color has to be seen before the filtered color changes to it.
+     *
+     * @param seconds the minimum dwell time in seconds.
+     */
+    public CT_ColorFilter setMinDwellTime(double seconds) {
+        m_minDwellSeconds = seconds;
+        return this;
+    }
+
+    /**
+     * Sets the gain used by the ExponentialAverage mode.
+     *
+     * @param gain how much of each new sample is blended in, from 0 (never changes) to 1 (no smoothing).
+     */
+    public CT_ColorFilter setAverageGain(double gain) {
+        m_averageGain = Math.min(Math.max(gain, 0), 1);
+        return this;
+    }
+
+    /**
+     * Adds a listener that is told about every color transition.
+     */
+    public synchronized void addListener(ColorTransitionListener listener) {
+        ColorTransitionListener[] listeners = new ColorTransitionListener[m_listeners.length + 1];
+        System.arraycopy(m_listeners, 0, listeners, 0, m_listeners.length);
+        listeners[m_listeners.length] = listener;
+        m_listeners = listeners;
+    }
+
+    /**
+     * Removes a listener added with addListener().
+     */
+    public synchronized void removeListener(ColorTransitionListener listener) {
+        for (int i = 0; i < m_listeners.length; i++) {
+            if (m_listeners[i] == listener) {
+                ColorTransitionListener[] listeners = new ColorTransitionListener[m_listeners.length - 1];
+                System.arraycopy(m_listeners, 0, listeners, 0, i);
+                System.arraycopy(m_listeners, i + 1, listeners, i, m_listeners.length - i - 1);
+                m_listeners = listeners;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Clears the window and the average. The filtered color is kept until the next transition.
+     */
+    public void reset() {
+        for (int i = 0; i < m_votes.length; i++) {
+            m_votes[i] = 0;
+        }
+        m_windowIndex = 0;
+        m_windowFill = 0;
+        m_majoritySlot = k_noColor;
+        m_hasAverage = false;
+        m_pendingIndex = m_stableIndex;
+    }
+
+    /**
+     * Feeds a raw sample into the filter. The color does not need to be normalized.
+     *
+     * @param red raw red value.
+     * @param green raw green value.
+     * @param blue raw blue value.
+     * @param timestamp FPGA time in seconds the sample was taken.
+     * @return the filtered target index, or k_noColor.
+     */
+    public int update(double red, double green, double blue, double timestamp) {
+        int candidate;
+
+        if (m_filterMode == FilterMode.ExponentialAverage) {
+            double magnitude = red + green + blue;
+            if (magnitude > 0) {
+                red /= magnitude;
+                green /= magnitude;
+                blue /= magnitude;
+                if (m_hasAverage) {
+                    m_averageRed += m_averageGain * (red - m_averageRed);
+                    m_averageGreen += m_averageGain * (green - m_averageGreen);
+                    m_averageBlue += m_averageGain * (blue - m_averageBlue);
+                } else {
+                    m_averageRed = red;
+                    m_averageGreen = green;
+                    m_averageBlue = blue;
+                    m_hasAverage = true;
+                }
+            }
+            candidate = m_hasAverage ? classify(m_averageRed, m_averageGreen, m_averageBlue) : k_noColor;
+        } else {
+            candidate = vote(classify(red, green, blue));
+        }
+
+        if (candidate == m_stableIndex) {
+            m_pendingIndex = candidate;
+        } else if (candidate != m_pendingIndex) {
+            m_pendingIndex = candidate;
+            m_pendingSince = timestamp;
+        }
+
+        if (m_pendingIndex != m_stableIndex && timestamp - m_pendingSince >= m_minDwellSeconds) {
+            int exited = m_stableIndex;
+            m_stableIndex = m_pendingIndex;
+            notifyListeners(exited, m_stableIndex, timestamp);
+        }
+
+        return m_stableIndex;
+    }
+
+    /**
+     * Gets the filtered color.
+     *
+     * @return the index into CT_ColorSensor.getTargets(), or k_noColor if no color is stable.
+     */
+    public int getFilteredIndex() {
+        return m_stableIndex;
+    }
+
+    /**
+     * Matches a sample and drops it if it is under the confidence threshold.
+     */
+    private int classify(double red, double green, double blue) {
+        int index = m_sensor.matchIndex(red, green, blue);
+        if (index == k_noColor || m_sensor.matchConfidence(index, red, green, blue) < m_minConfidence) {
+            return k_noColor;
+        }
+        return index;
+    }
+
+    /**
+     * Puts the sample into the window and returns the color with more than half the votes.
+     */
+    private int vote(int index) {
+        int slot = index == k_noColor ? k_unknownSlot : index;
+
+        if (m_windowFill == m_windowSize) {
+            m_votes[m_window[m_windowIndex]]--;
+        } else {
+            m_windowFill++;
+        }
+        m_window[m_windowIndex] = (byte) slot;
+        m_votes[slot]++;
+        m_windowIndex = (m_windowIndex + 1) % m_windowSize;
+
+        // Only one color can hold the majority, and only the newest sample's color can have gained it.
+        if (m_votes[slot] * 2 > m_windowSize) {
+            m_majoritySlot = slot;
+        } else if (m_majoritySlot != k_noColor && m_votes[m_majoritySlot] * 2 <= m_windowSize) {
+            m_majoritySlot = k_noColor;
+        }
+        return m_majoritySlot == k_noColor || m_majoritySlot == k_unknownSlot ? k_noColor : m_majoritySlot;
+    }
+
+    private void notifyListeners(int exited, int entered, double timestamp) {
+        ColorTransitionListener[] listeners = m_listeners;
+        if (exited != k_noColor) {
+            for (ColorTransitionListener listener : listeners) {
+                listener.onColorExit(exited, timestamp);
+            }
+        }
+        if (entered != k_noColor) {
+            for (ColorTransitionListener listener : listeners) {
+                listener.onColorEnter(entered, timestamp);
+            }
+        }
+    }
+}
@@ -1,11 +1,17 @@
 package frc.robot.Toolkit;
 
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.function.Supplier;
+
 import com.revrobotics.ColorSensorV3;
 
+import edu.wpi.first.hal.I2CJNI;
 import edu.wpi.first.wpilibj.I2C;
+import edu.wpi.first.wpilibj.Timer;
 import edu.wpi.first.wpilibj.util.Color;
 
-import com.revrobotics.ColorMatchResult;
 import com.revrobotics.ColorMatch;
 /**
  * Wire pins
@@ -18,19 +24,125 @@ import com.revrobotics.ColorMatch;
 
 public class CT_ColorSensor extends ColorSensorV3{
 
-    private final ColorMatch m_colorMatcher = new ColorMatch();
+    /**
+     * Amount of bins each normalized color channel is split into for the lookup table.
+     * Normalized red, green and blue always add up to 1, so only red and green are needed to index the table.
+     */
+    private static final int k_lookupResolution = 128;
+    private static final int k_noMatch = -1;
+    /**
+     * How old the latest background sample can be for getColor() to use it instead of reading the sensor.
+     * Two measurements at the sensor's fastest rate.
+     */
+    private static final double k_maxSampleAge = 0.05;
+
+    private static final byte k_deviceAddress = 0x52;
+    /**
+     * Green, blue and red are stored back to back starting here, 3 little endian bytes each.
+     */
+    private static final byte k_colorDataRegister = 0x0D;
 
     // private final Color m_kBlueTarget = Color.kAqua;
     // private final Color m_kGreenTarget = Color.kLime;
     // private final Color m_kRedTarget = Color.kRed;
     // private final Color m_kYellowTarget = Color.kYellow;
-    private final Color m_kBlueTarget = ColorMatch.makeColor(0.12, 0.42, 0.45);
-    private final Color m_kGreenTarget = ColorMatch.makeColor(0.17, 0.57, 0.25);
-    private final Color m_kRedTarget = ColorMatch.makeColor(0.51, 0.34, 0.13);
-    private final Color m_kYellowTarget = ColorMatch.makeColor(0.32, 0.55, 0.12);
+    private static final ColorTarget[] k_defaultTargets = {
+        new ColorTarget("Blue", ColorMatch.makeColor(0.12, 0.42, 0.45), Color.kBlue),
+        new ColorTarget("Green", ColorMatch.makeColor(0.17, 0.57, 0.25), Color.kGreen),
+        new ColorTarget("Red", ColorMatch.makeColor(0.51, 0.34, 0.13), Color.kRed),
+        new ColorTarget("Yellow", ColorMatch.makeColor(0.32, 0.55, 0.12), Color.kYellow)
+    };
+
+    private volatile MatchTable m_matchTable;
+
+    private final byte m_port;
+    private final ByteBuffer m_registerBuffer = ByteBuffer.allocateDirect(1);
+    private final ByteBuffer m_colorBuffer = ByteBuffer.allocateDirect(9).order(ByteOrder.LITTLE_ENDIAN);
+    private int m_rawRed;
+    private int m_rawGreen;
+    private int m_rawBlue;
+    private double m_sampleTimestamp;
+
+    private final CT_ColorFilter m_filter = new CT_ColorFilter(this);
+
+    private final CT_I2CBus m_bus;
+    private final CT_I2CBus.Device m_device;
+    private final Supplier<Boolean> m_sampleRawColor = this::sampleRawColor;
+    private final Supplier<Color> m_readColor = super::getColor;
 
     private Runnable m_methodToRun;
 
+    /**
+     * A color the sensor can match against. The reference color is what the sensor
+     * actually reads when looking at the target, the output color is what gets
+     * handed back by getMatchedColor().
+     */
+    public static class ColorTarget {
+        private final String m_name;
+        private final Color m_reference;
+        private final Color m_output;
+
+        /**
+         * Creates a new target.
+         *
+         * @param name the readable name of the target, returned by getMatchedColorString().
+         * @param reference the normalized color the sensor reads for this target. Use ColorMatch.makeColor(r, g, b).
+         * @param output the color returned by getMatchedColor() when this target is matched.
+         */
+        public ColorTarget(String name, Color reference, Color output) {
+            m_name = name;
+            m_reference = reference;
+            m_output = output;
+        }
+
+        public String getName() {
+            return m_name;
+        }
+
+        public Color getReference() {
+            return m_reference;
+        }
+
+        public Color getOutput() {
+            return m_output;
+        }
+    }
+
+    /**
+     * The targets along with the nearest target index for every quantized red/green pair.
+     * Both are swapped together so a lookup never reads a table built for another target set.
+     */
+    private static final class MatchTable {
+        private final ColorTarget[] targets;
+        private final byte[] nearest;
+
+        private MatchTable(ColorTarget[] targets) {
+            this.targets = targets;
+            this.nearest = new byte[k_lookupResolution * k_lookupResolution];
+
+            for (int redBin = 0; redBin < k_lookupResolution; redBin++) {
+                for (int greenBin = 0; greenBin < k_lookupResolution; greenBin++) {
+                    // Uses the center of the bin, blue is whatever is left over.
+                    double red = (redBin + 0.5) / k_lookupResolution;
+                    double green = (greenBin + 0.5) / k_lookupResolution;
+                    double blue = Math.max(0, 1 - red - green);
+
+                    int nearestIndex = k_noMatch;
+                    double nearestDistance = Double.MAX_VALUE;
+
+                    for (int i = 0; i < targets.length; i++) {
+                        double distance = squaredDistance(targets[i].getReference(), red, green, blue);
+                        if (distance < nearestDistance) {
+                            nearestDistance = distance;
+                            nearestIndex = i;
+                        }
+                    }
+                    nearest[redBin * k_lookupResolution + greenBin] = (byte) nearestIndex;
+                }
+            }
+        }
+    }
+
     /**
      * Creates a new default ColorSensor instance.
      * 
@@ -48,12 +160,39 @@ public class CT_ColorSensor extends ColorSensorV3{
      */
     public CT_ColorSensor(I2C.Port port, Runnable methodToRun) {
         super(port);
+        m_port = (byte) port.value;
+        m_bus = CT_I2CBus.get(port);
+        m_device = m_bus.register("Color sensor 0x52", CT_I2CBus.k_normalPriority);
         m_methodToRun = methodToRun;
 
-        m_colorMatcher.addColorMatch(m_kBlueTarget);
-        m_colorMatcher.addColorMatch(m_kGreenTarget);
-        m_colorMatcher.addColorMatch(m_kRedTarget);
-        m_colorMatcher.addColorMatch(m_kYellowTarget); 
+        ColorTarget[] calibratedTargets = CT_ColorCalibrator.loadTargets(new File(CT_ColorCalibrator.k_defaultTargetFile));
+        if (calibratedTargets != null) {
+            setTargets(calibratedTargets);
+        } else {
+            setTargets(k_defaultTargets);
+        }
+    }
+
+    /**
+     * Replaces the colors the sensor matches against and rebuilds the lookup table.
+     * Any amount of targets up to 127 can be used.
+     * 
+     * @param targets the colors that can be matched.
+     */
+    public void setTargets(ColorTarget... targets) {
+        if (targets.length > Byte.MAX_VALUE) {
+            throw new IllegalArgumentException("CT_ColorSensor supports at most " + Byte.MAX_VALUE + " targets, got " + targets.length);
+        }
+        m_matchTable = new MatchTable(targets.clone());
+    }
+
+    /**
+     * Gets the colors the sensor currently matches against.
+     * 
+     * @return a copy of the target list.
+     */
+    public ColorTarget[] getTargets() {
+        return m_matchTable.targets.clone();
     }
 
     /**
@@ -65,26 +204,54 @@ public class CT_ColorSensor extends ColorSensorV3{
         m_methodToRun = methodToRun;
     }
 
+    /**
+     * Finds the index of the target closest to the given color with a single table lookup.
+     * The color does not need to be normalized.
+     * 
+     * @return the index into getTargets(), or -1 if there are no targets or the color is black.
+     */
+    public int matchIndex(double red, double green, double blue) {
+        double magnitude = red + green + blue;
+        if (magnitude <= 0) {
+            return k_noMatch;
+        }
+        return m_matchTable.nearest[lookupIndex(red / magnitude, green / magnitude)];
+    }
+
+    /**
+     * Gets the target at the given index.
+     * 
+     * @param index an index returned by matchIndex() or the filter.
+     * @return the target, or null if the index is not a target.
+     */
+    public ColorTarget getTarget(int index) {
+        ColorTarget[] targets = m_matchTable.targets;
+
+        return index >= 0 && index < targets.length ? targets[index] : null;
+    }
+
+    /**
+     * Gets the target seen by the color sensor.
+     * 
+     * @return the matched target, or null if there are no targets.
+     */
+    public ColorTarget getMatchedTarget() {
+        MatchTable table = m_matchTable;
+        Color detectedColor = getColor();
+        int index = table.nearest[lookupIndex(detectedColor.red, detectedColor.green)];
+
+        return index == k_noMatch ? null : table.targets[index];
+    }
+
     /**
      * Gets the color seen by the color sensor.
      * 
      * @return the Color object that is seen by the color sensor.
      */
     public Color getMatchedColor() {
-        Color detectedColor = getColor();
-        ColorMatchResult match = m_colorMatcher.matchClosestColor(detectedColor);
-
-        if (match.color == m_kBlueTarget) {
-            return Color.kBlue;
-        } else if (match.color == m_kRedTarget) {
-            return Color.kRed;
-        } else if (match.color == m_kGreenTarget) {
-            return Color.kGreen;
-        } else if (match.color == m_kYellowTarget) {
-            return Color.kYellow;
-        } else {
-            return null;
-        }
+        ColorTarget match = getMatchedTarget();
+
+        return match == null ? null : match.getOutput();
     }
 
     /**
@@ -93,10 +260,14 @@ public class CT_ColorSensor extends ColorSensorV3{
      * @return a double where 0 is the low confidence and 1 is high confidence.
      */
     public double getConfidence() {
-        Color detectedColor = super.getColor();
-        ColorMatchResult match = m_colorMatcher.matchClosestColor(detectedColor);
+        MatchTable table = m_matchTable;
+        Color detectedColor = getColor();
+        int index = table.nearest[lookupIndex(detectedColor.red, detectedColor.green)];
 
-        return match.confidence;
+        if (index == k_noMatch) {
+            return 0;
+        }
+        return 1 - Math.sqrt(squaredDistance(table.targets[index].getReference(), detectedColor.red, detectedColor.green, detectedColor.blue));
     }
 
     /**
@@ -105,28 +276,22 @@ public class CT_ColorSensor extends ColorSensorV3{
      * @return the current color in a readable format.
      */
     public String getMatchedColorString() {
-        Color detectedColor = getColor();
-        ColorMatchResult match = m_colorMatcher.matchClosestColor(detectedColor);
-
-        if (match.color == m_kBlueTarget) {
-            return "Blue";
-        } else if (match.color == m_kRedTarget) {
-            return "Red";
-        } else if (match.color == m_kGreenTarget) {
-            return "Green";
-        } else if (match.color == m_kYellowTarget) {
-            return "Yellow";
+        ColorTarget match = getMatchedTarget();
+
+        if (match != null) {
+            return match.getName();
         } else {
             return "Unexpected error or color occurred.";
         }
     }
-    
+
     /**
      * Checks to see if the passed in color is the same one the sensor sees. 
      * If the color is the same, the method either given by the constructor 
      * ColorSensor(port, methodToRun) or ColorSensor method setMethodToRun will run.
      * The given method will only run ONCE and will have to be reset by the ColorSensor method setMethodToRun.
      * This method is best used when called in the periodic method of a subsystem.
+     * A single sample is enough to run the method, use whenColorEntered() to only react to filtered colors.
      * 
      * @param color the Color object that will be compared to the current color. Color.kBlue, Color.kRed, etc.
      * @return If the two colors were the same and the method was run. 
@@ -148,4 +313,280 @@ public class CT_ColorSensor extends ColorSensorV3{
             return false;
         }
     }
+
+    /**
+     * Gets the normalized color. While a background read is keeping the sample fresh, such as a CT_ColorCounter,
+     * this uses the latest sample without touching the bus. Otherwise it reads the sensor on the I2C bus thread,
+     * so it never interleaves with other devices on the port.
+     */
+    @Override
+    public Color getColor() {
+        synchronized (this) {
+            double magnitude = m_rawRed + m_rawGreen + m_rawBlue;
+            if (magnitude > 0 && Timer.getFPGATimestamp() - m_sampleTimestamp <= k_maxSampleAge) {
+                return new Color(m_rawRed / magnitude, m_rawGreen / magnitude, m_rawBlue / magnitude);
+            }
+        }
+        // The lock is let go first, a thread holding it must never wait on the bus thread.
+        return m_bus.execute(m_device, m_readColor);
+    }
+
+    /**
+     * Reads the raw color on the I2C bus thread.
+     */
+    @Override
+    public RawColor getRawColor() {
+        return m_bus.execute(m_device, super::getRawColor);
+    }
+
+    /**
+     * Reads the proximity on the I2C bus thread.
+     */
+    @Override
+    public int getProximity() {
+        return m_bus.execute(m_device, super::getProximity);
+    }
+
+    /**
+     * Configures the color sensor on the I2C bus thread.
+     */
+    @Override
+    public void configureColorSensor(ColorSensorResolution res, ColorSensorMeasurementRate rate, GainFactor gain) {
+        m_bus.execute(m_device, () -> {
+            super.configureColorSensor(res, rate, gain);
+            return null;
+        });
+    }
+
+    /**
+     * Configures the proximity sensor on the I2C bus thread.
+     */
+    @Override
+    public void configureProximitySensor(ProximitySensorResolution res, ProximitySensorMeasurementRate rate) {
+        m_bus.execute(m_device, () -> {
+            super.configureProximitySensor(res, rate);
+            return null;
+        });
+    }
+
+    /**
+     * Configures the proximity LED on the I2C bus thread.
+     */
+    @Override
+    public void configureProximitySensorLED(LEDPulseFrequency freq, LEDCurrent current, int pulses) {
+        m_bus.execute(m_device, () -> {
+            super.configureProximitySensorLED(freq, current, pulses);
+            return null;
+        });
+    }
+
+    /**
+     * Reads the red channel on the I2C bus thread.
+     */
+    @Override
+    public int getRed() {
+        return m_bus.execute(m_device, super::getRed);
+    }
+
+    /**
+     * Reads the green channel on the I2C bus thread.
+     */
+    @Override
+    public int getGreen() {
+        return m_bus.execute(m_device, super::getGreen);
+    }
+
+    /**
+     * Reads the blue channel on the I2C bus thread.
+     */
+    @Override
+    public int getBlue() {
+        return m_bus.execute(m_device, super::getBlue);
+    }
+
+    /**
+     * Reads the IR channel on the I2C bus thread.
+     */
+    @Override
+    public int getIR() {
+        return m_bus.execute(m_device, super::getIR);
+    }
+
+    /**
+     * Reads the reset flag on the I2C bus thread. Reading the status register clears it, so it must go through the bus too.
+     */
+    @Override
+    public boolean hasReset() {
+        // The ColorSensorV3 constructor clears the flag itself, before the bus is set up.
+        if (m_bus == null) {
+            return super.hasReset();
+        }
+        return m_bus.execute(m_device, super::hasReset);
+    }
+
+    /**
+     * Gets the timing of this sensor's transactions on the I2C bus.
+     */
+    public CT_I2CBus.Device getBusDevice() {
+        return m_device;
+    }
+
+    /**
+     * Gets the filter that whenColorEntered() and updateFilter() use.
+     * The window, confidence threshold and dwell time can be changed through it.
+     * 
+     * @return the filter of this sensor.
+     */
+    public CT_ColorFilter getFilter() {
+        return m_filter;
+    }
+
+    /**
+     * Reads the sensor once and feeds the sample through the filter, which will run any transition listeners.
+     * This method is best used when called in the periodic method of a subsystem.
+     * 
+     * @return the filtered target, or null if no color is stable.
+     */
+    public ColorTarget updateFilter() {
+        sampleInto(m_filter);
+        return getFilteredTarget();
+    }
+
+    /**
+     * Starts counting color changes on a background thread at the sensor's fastest measurement rate.
+     * 
+     * @param segmentsPerRevolution amount of colored segments on the wheel being counted.
+     * @return the counter, which gives the segments seen, rate and position.
+     */
+    public CT_ColorCounter startCounting(int segmentsPerRevolution) {
+        CT_ColorCounter counter = new CT_ColorCounter(this, segmentsPerRevolution);
+        counter.start();
+        return counter;
+    }
+
+    /**
+     * Reads the sensor once and feeds the sample into the given filter.
+     * 
+     * @return if the read was successful.
+     */
+    boolean sampleInto(CT_ColorFilter filter) {
+        if (!m_bus.execute(m_device, m_sampleRawColor)) {
+            return false;
+        }
+        // The lock is taken after the bus, a thread holding it must never wait on the bus thread.
+        synchronized (this) {
+            filter.update(m_rawRed, m_rawGreen, m_rawBlue, m_sampleTimestamp);
+        }
+        return true;
+    }
+
+    /**
+     * Gets the last filtered target without reading the sensor.
+     * 
+     * @return the filtered target, or null if no color is stable.
+     */
+    public ColorTarget getFilteredTarget() {
+        return getTarget(m_filter.getFilteredIndex());
+    }
+
+    /**
+     * Runs the given method every time the filtered color becomes the given color.
+     * Unlike runWhenColorIsDetected(), the method does not have to be reset and will not run on a single noisy sample.
+     * updateFilter() needs to be called for the filter to see new samples.
+     * 
+     * @param color the output color of the target. Color.kBlue, Color.kRed, etc.
+     * @param methodToRun the method that will be ran when the color is entered.
+     */
+    public void whenColorEntered(Color color, Runnable methodToRun) {
+        m_filter.addListener(new CT_ColorFilter.ColorTransitionListener() {
+            @Override
+            public void onColorEnter(int targetIndex, double timestamp) {
+                ColorTarget target = getTarget(targetIndex);
+                if (target != null && color.equals(target.getOutput())) {
+                    methodToRun.run();
+                }
+            }
+        });
+    }
+
+    /**
+     * Gets how close a color is to the given target.
+     * 
+     * @return a double where 0 is the low confidence and 1 is high confidence.
+     */
+    double matchConfidence(int index, double red, double green, double blue) {
+        ColorTarget target = getTarget(index);
+        double magnitude = red + green + blue;
+        if (target == null || magnitude <= 0) {
+            return 0;
+        }
+        return 1 - Math.sqrt(squaredDistance(target.getReference(), red / magnitude, green / magnitude, blue / magnitude));
+    }
+
+    /**
+     * Reads the sensor once into the given array.
+     * 
+     * @param rawColor filled with the raw red, green and blue values.
+     * @return if the read was successful.
+     */
+    boolean readRawColor(int[] rawColor) {
+        if (!m_bus.execute(m_device, m_sampleRawColor)) {
+            return false;
+        }
+        synchronized (this) {
+            rawColor[0] = m_rawRed;
+            rawColor[1] = m_rawGreen;
+            rawColor[2] = m_rawBlue;
+        }
+        return true;
+    }
+
+    /**
+     * Runs a read on the I2C bus thread every period, for background sampling.
+     */
+    CT_I2CBus.PeriodicRead addPeriodic(double period, Runnable read) {
+        return m_bus.addPeriodic(m_device, period, read);
+    }
+
+    /**
+     * Reads the red, green and blue channels in one I2C transaction into preallocated buffers.
+     * ColorSensorV3.getColor() allocates a new Color and reads each channel separately. Only run on the bus thread.
+     * 
+     * @return if the read was successful.
+     */
+    private synchronized boolean sampleRawColor() {
+        m_registerBuffer.put(0, k_colorDataRegister);
+        if (I2CJNI.i2CTransaction(m_port, k_deviceAddress, m_registerBuffer, (byte) 1, m_colorBuffer, (byte) 9) < 0) {
+            return false;
+        }
+        m_rawGreen = read20Bit(0);
+        m_rawBlue = read20Bit(3);
+        m_rawRed = read20Bit(6);
+        m_sampleTimestamp = Timer.getFPGATimestamp();
+        return true;
+    }
+
+    private int read20Bit(int offset) {
+        return ((m_colorBuffer.get(offset) & 0xFF)
+            | ((m_colorBuffer.get(offset + 1) & 0xFF) << 8)
+            | ((m_colorBuffer.get(offset + 2) & 0xFF) << 16)) & 0xFFFFF;
+    }
+
+    /**
+     * Gets the lookup table index of a normalized red and green pair.
+     */
+    private static int lookupIndex(double red, double green) {
+        int redBin = Math.min(Math.max((int) (red * k_lookupResolution), 0), k_lookupResolution - 1);
+        int greenBin = Math.min(Math.max((int) (green * k_lookupResolution), 0), k_lookupResolution - 1);
+
+        return redBin * k_lookupResolution + greenBin;
+    }
+
+    private static double squaredDistance(Color color, double red, double green, double blue) {
+        double redDiff = color.red - red;
+        double greenDiff = color.green - green;
+        double blueDiff = color.blue - blue;
+
+        return redDiff * redDiff + greenDiff * greenDiff + blueDiff * blueDiff;
+    }
 }
\ No newline at end of file
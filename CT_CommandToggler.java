@@ -9,19 +9,22 @@ import edu.wpi.first.wpilibj.RobotState;
 import edu.wpi.first.wpilibj2.command.Command;
 import edu.wpi.first.wpilibj2.command.CommandScheduler;
 import edu.wpi.first.wpilibj2.command.button.Button;
-import edu.wpi.first.wpilibj2.command.button.Trigger;
 
 /**
  * A class dedicated to make it easy to make buttons toggle between or through multiple commands
  */
 public class CT_CommandToggler {
 
+    // Shared by every toggler, so the condition group only checks if the robot is enabled once a loop.
+    private static final BooleanSupplier k_isEnabled = RobotState::isEnabled;
+
     private boolean cycle;
     private List<Command> commands;
     private List<CommandState> commandStates;
     private Button upButton, downButton;
     private int currentIndex;
     private CommandState defaultCmdState = CommandState.Normal;
+    private CT_TransitionLog transitionLog;
 
     /**
      * CommandStates define how the commands should be run in the CommandToggler's command list
@@ -69,6 +72,9 @@ public class CT_CommandToggler {
     public CT_CommandToggler addCommand(Command command, CommandState state) {
         commands.add(command);
         commandStates.add(state);
+        if(transitionLog != null) {
+            transitionLog.ensureIndex(commands.size() - 1);
+        }
         return this;
     }
     /**
@@ -114,25 +120,41 @@ public class CT_CommandToggler {
      * When the robot is enabled, it will jump to running the first command
      */
     public CT_CommandToggler startOnEnable() {
-        new Button(RobotState::isEnabled).whenActive(() -> {
-            System.out.println("enabled");
-            runIndex(0);
-        });
+        CT_ConditionGroup.getInstance().add(k_isEnabled, () -> canRunIndex(0), () -> runIndex(0), () -> recordSkipped(0));
         return this;
     }
     /**
      * when the condition passed in is true, the CommandList will go to the specified command,
      * unless it is not able to run, ie: in the case of having a precendented command still running
+     * The condition is checked in the CT_ConditionGroup, so passing the same BooleanSupplier instance
+     * to several togglers only checks it once a loop
      * @param index the index of the command to jump to
      * @param condition the condition that must be fulfilled
      */
     public CT_CommandToggler jumpTo(int index, BooleanSupplier condition) {
-        new Trigger(condition).whenActive(() -> {
-            runIndex(index);
-            System.out.println("GAMMER");
-        });
+        CT_ConditionGroup.getInstance().add(condition, () -> canRunIndex(index), () -> runIndex(index), () -> recordSkipped(index));
         return this;
     }
+    /**
+     * Records every request, block, cancel, schedule and finish into a CT_TransitionLog,
+     * and publishes the latency histograms of each command to SmartDashboard under the name
+     * @param name the SmartDashboard key to publish under
+     */
+    public CT_CommandToggler recordTransitions(String name) {
+        if(transitionLog == null) {
+            transitionLog = new CT_TransitionLog(name);
+            transitionLog.ensureIndex(commands.size() - 1);
+            CommandScheduler.getInstance().onCommandFinish(this::recordFinished);
+            CommandScheduler.getInstance().onCommandInterrupt(this::recordFinished);
+        }
+        return this;
+    }
+    /**
+     * Returns the log of transitions, or null if recordTransitions() hasn't been called
+     */
+    public CT_TransitionLog getTransitionLog() {
+        return transitionLog;
+    }
     /**
      * Sets whether to cycle through the command list, if true, once the last command has been started,
      * the next time the set CommandToggler is pressed, it will loop to the beginning of the command list and run the first command
@@ -152,29 +174,84 @@ public class CT_CommandToggler {
         return setToggleButton(new Button(pressed));
     }
 
-    private void runIndex(int index) {
+    private int resolveIndex(int index) {
         if (index > commands.size() - 1) {
-            index = cycle ? 0 : currentIndex;
+            return cycle ? 0 : currentIndex;
         }
         else if (index < 0) {
-            index = cycle ? commands.size() - 1 : currentIndex;
+            return cycle ? commands.size() - 1 : currentIndex;
+        }
+        return index;
+    }
+    /**
+     * Gets if runIndex() would start the command at the index, without changing anything
+     */
+    private boolean canRunIndex(int index) {
+        if(commands.isEmpty() || resolveIndex(index) == currentIndex) {
+            return false;
+        }
+        return currentIndex == -1 || !isBlocking(currentIndex);
+    }
+    /**
+     * Gets if the command at the index is Precedented and still running. isFinished() only asks the command
+     * if it would end on its next loop, so a cancelled or already ended command can still say false
+     */
+    private boolean isBlocking(int index) {
+        Command command = commands.get(index);
+        return commandStates.get(index) == CommandState.Precedented && command != null && command.isScheduled();
+    }
+
+    /**
+     * Records a jump the condition group didn't run, the same as runIndex() would have recorded it
+     */
+    private void recordSkipped(int index) {
+        if(transitionLog == null || commands.isEmpty()) {
+            return;
+        }
+        index = resolveIndex(index);
+        if(currentIndex != index && currentIndex != -1 && isBlocking(currentIndex)) {
+            record(CT_TransitionLog.Event.Requested, index);
+            record(CT_TransitionLog.Event.Blocked, index);
         }
+    }
+
+    private void runIndex(int index) {
+        index = resolveIndex(index);
         if(currentIndex != index) {
+            record(CT_TransitionLog.Event.Requested, index);
             if(currentIndex != -1) {
                 CommandState state = commandStates.get(currentIndex);
-                if(state == CommandState.Precedented && !commands.get(currentIndex).isFinished()) {
+                if(isBlocking(currentIndex)) {
+                    record(CT_TransitionLog.Event.Blocked, index);
                     return;
                 }
                 if(state == CommandState.Interruptible && commands.get(currentIndex) != null) {
                     commands.get(currentIndex).cancel();
+                    record(CT_TransitionLog.Event.Cancelled, currentIndex);
                 }
             }
             if(commands.get(index) != null) {
                 CommandScheduler.getInstance().schedule(commands.get(index));
             }
+            // Recorded for empty slots too, the toggler still moved so the request and any block are over
+            record(CT_TransitionLog.Event.Scheduled, index);
             currentIndex = index;
         }
     }
+
+    private void record(CT_TransitionLog.Event event, int index) {
+        if(transitionLog != null) {
+            transitionLog.record(event, currentIndex, index);
+        }
+    }
+
+    private void recordFinished(Command command) {
+        for(int i = 0; i < commands.size(); i++) {
+            if(commands.get(i) == command) {
+                record(CT_TransitionLog.Event.Finished, i);
+            }
+        }
+    }
     /**
      * Assigns a button to control toggling upward through the command list
      * @param button = a Button object
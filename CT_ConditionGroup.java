@@ -0,0 +1,214 @@
+package frc.robot.Toolkit;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.function.BooleanSupplier;
+
+import edu.wpi.first.wpilibj2.command.CommandScheduler;
+
+/**
+ * Checks the conditions of every CT_CommandToggler from one CommandScheduler button, instead of a Trigger per condition.
+ * A supplier shared by more than one condition is only called once a loop, and a condition whose action couldn't do anything,
+ * such as a jump blocked behind a Precedented command, doesn't run it.
+ *
+ * A condition works like Trigger.whenActive(), its action runs when the supplier goes from false to true.
+ * Skipped conditions still record their value every loop, so an edge that happened while the action couldn't run is dropped,
+ * the same as a Trigger whose action did nothing, but an edge in the loop the action can run again isn't.
+ *
+ * Every supplier is called every loop, even while none of its conditions can act. Not calling it would leave no value
+ * from the loop before the action could run again, so an edge in that loop couldn't be told apart from one that happened
+ * while it was skipped, and the skipped action, which the toggler uses to record blocked requests, would never see an edge.
+ * The savings come from calling shared suppliers once and from skipping actions, not from skipping suppliers.
+ * Only meant to be used from the robot thread.
+ */
+public final class CT_ConditionGroup {
+
+    private static final CT_ConditionGroup k_instance = new CT_ConditionGroup();
+
+    // Suppliers are shared by identity, so pass the same instance to conditions that should share a check.
+    private final IdentityHashMap<BooleanSupplier, Integer> m_slots = new IdentityHashMap<>();
+    private BooleanSupplier[] m_suppliers = new BooleanSupplier[0];
+    private boolean[] m_values = new boolean[0];
+    private long[] m_checkedCycle = new long[0];
+    private Condition[] m_conditions = new Condition[0];
+    private long m_cycle;
+    private boolean m_isScheduled;
+
+    private long m_cycleCount;
+    private long m_lastCycleNanos;
+    private long m_totalCycleNanos;
+    private long m_maxCycleNanos;
+    private int m_lastCheckedCount;
+    private int m_lastSkippedCount;
+
+    /**
+     * A condition added to the group.
+     */
+    public final class Condition {
+        private final int m_slot;
+        private final BooleanSupplier m_canAct;
+        private final Runnable m_action;
+        private final Runnable m_skippedAction;
+        private boolean m_lastValue;
+
+        private Condition(int slot, BooleanSupplier canAct, Runnable action, Runnable skippedAction) {
+            m_slot = slot;
+            m_canAct = canAct;
+            m_action = action;
+            m_skippedAction = skippedAction;
+            // Like a Trigger, a condition that is already true when added doesn't run its action.
+            m_lastValue = m_suppliers[slot].getAsBoolean();
+        }
+
+        /**
+         * Gets the value of the condition the last time it was checked.
+         */
+        public boolean getLastValue() {
+            return m_lastValue;
+        }
+    }
+
+    private CT_ConditionGroup() {}
+
+    public static CT_ConditionGroup getInstance() {
+        return k_instance;
+    }
+
+    /**
+     * Adds a condition to the group.
+     *
+     * @param condition the condition, checked at most once a loop no matter how many conditions share it.
+     * @param canAct if the action could do anything right now, the action isn't run while this is false. Should be cheap.
+     * @param action run when the condition becomes true.
+     */
+    public Condition add(BooleanSupplier condition, BooleanSupplier canAct, Runnable action) {
+        return add(condition, canAct, action, null);
+    }
+
+    /**
+     * Adds a condition to the group.
+     *
+     * @param condition the condition, checked at most once a loop no matter how many conditions share it.
+     * @param canAct if the action could do anything right now, the action isn't run while this is false. Should be cheap.
+     * @param action run when the condition becomes true.
+     * @param skippedAction run instead of the action when the condition becomes true while canAct is false, can be null.
+     */
+    public Condition add(BooleanSupplier condition, BooleanSupplier canAct, Runnable action, Runnable skippedAction) {
+        Integer slot = m_slots.get(condition);
+        if (slot == null) {
+            slot = m_suppliers.length;
+            m_slots.put(condition, slot);
+            m_suppliers = Arrays.copyOf(m_suppliers, slot + 1);
+            m_suppliers[slot] = condition;
+            m_values = Arrays.copyOf(m_values, slot + 1);
+            m_checkedCycle = Arrays.copyOf(m_checkedCycle, slot + 1);
+        }
+
+        Condition added = new Condition(slot, canAct, action, skippedAction);
+        m_conditions = Arrays.copyOf(m_conditions, m_conditions.length + 1);
+        m_conditions[m_conditions.length - 1] = added;
+
+        if (!m_isScheduled) {
+            CommandScheduler.getInstance().addButton(this::check);
+            m_isScheduled = true;
+        }
+        return added;
+    }
+
+    public int getConditionCount() {
+        return m_conditions.length;
+    }
+
+    /**
+     * Gets the amount of different suppliers in the group.
+     */
+    public int getSupplierCount() {
+        return m_suppliers.length;
+    }
+
+    /**
+     * Gets the amount of suppliers called in the last loop.
+     */
+    public int getLastCheckedCount() {
+        return m_lastCheckedCount;
+    }
+
+    /**
+     * Gets the amount of conditions that became true in the last loop but whose action couldn't do anything.
+     */
+    public int getLastSkippedCount() {
+        return m_lastSkippedCount;
+    }
+
+    /**
+     * Gets how long the last loop's check took, including any actions it ran.
+     *
+     * @return the time in seconds.
+     */
+    public double getLastCycleTime() {
+        return m_lastCycleNanos / 1e9;
+    }
+
+    /**
+     * Gets how long a loop's check takes on average since the statistics were reset.
+     *
+     * @return the time in seconds.
+     */
+    public double getAverageCycleTime() {
+        return m_cycleCount == 0 ? 0 : m_totalCycleNanos / 1e9 / m_cycleCount;
+    }
+
+    /**
+     * Gets the longest a loop's check has taken since the statistics were reset.
+     *
+     * @return the time in seconds.
+     */
+    public double getMaxCycleTime() {
+        return m_maxCycleNanos / 1e9;
+    }
+
+    public void resetStatistics() {
+        m_cycleCount = 0;
+        m_totalCycleNanos = 0;
+        m_maxCycleNanos = 0;
+    }
+
+    private void check() {
+        long start = System.nanoTime();
+        long cycle = ++m_cycle;
+        int checked = 0;
+        int skipped = 0;
+
+        for (Condition condition : m_conditions) {
+            int slot = condition.m_slot;
+            if (m_checkedCycle[slot] != cycle) {
+                m_values[slot] = m_suppliers[slot].getAsBoolean();
+                m_checkedCycle[slot] = cycle;
+                checked++;
+            }
+
+            boolean value = m_values[slot];
+            boolean rose = value && !condition.m_lastValue;
+            condition.m_lastValue = value;
+            if (!rose) {
+                continue;
+            }
+            if (condition.m_canAct.getAsBoolean()) {
+                condition.m_action.run();
+            } else {
+                skipped++;
+                if (condition.m_skippedAction != null) {
+                    condition.m_skippedAction.run();
+                }
+            }
+        }
+
+        long elapsed = System.nanoTime() - start;
+        m_lastCheckedCount = checked;
+        m_lastSkippedCount = skipped;
+        m_lastCycleNanos = elapsed;
+        m_totalCycleNanos += elapsed;
+        m_maxCycleNanos = Math.max(m_maxCycleNanos, elapsed);
+        m_cycleCount++;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,136 @@
+package frc.robot.Toolkit;
+
+import edu.wpi.first.wpilibj.DigitalInput;
+import edu.wpi.first.wpilibj.Timer;
+import edu.wpi.first.wpilibj2.command.CommandScheduler;
+
+/**
+ * Reads every registered digital input once per loop into a bitmask, so code that checks the same inputs
+ * many times a loop does a bit test instead of a HAL call each time.
+ *
+ * The snapshot is refreshed once every loop by the CommandScheduler when it polls its buttons, and every getter only reads it,
+ * so rose() and fell() always compare the same two snapshots for a whole loop. Code that runs before the buttons are polled,
+ * such as a subsystem's periodic(), sees the previous loop's snapshot.
+ * Bit n of the mask is DIO channel n, read as the raw signal without any negated logic.
+ * Only meant to be used from the robot thread.
+ */
+public final class CT_DIOSampler {
+
+    private static final int k_maxChannels = Long.SIZE;
+
+    private static final CT_DIOSampler k_instance = new CT_DIOSampler();
+
+    private DigitalInput[] m_inputs = new DigitalInput[0];
+    private long m_registeredMask;
+
+    private long m_current;
+    private long m_previous;
+    private double m_timestamp;
+    private boolean m_isScheduled;
+
+    private CT_DIOSampler() {}
+
+    public static CT_DIOSampler getInstance() {
+        return k_instance;
+    }
+
+    /**
+     * Adds an input to the snapshot. Registering the same channel again does nothing.
+     *
+     * @param input the input to read every loop.
+     */
+    public void register(DigitalInput input) {
+        int channel = input.getChannel();
+        if (channel < 0 || channel >= k_maxChannels) {
+            throw new IllegalArgumentException("CT_DIOSampler can't sample DIO channel " + channel);
+        }
+        long bit = 1L << channel;
+        if ((m_registeredMask & bit) != 0) {
+            return;
+        }
+
+        DigitalInput[] inputs = new DigitalInput[m_inputs.length + 1];
+        System.arraycopy(m_inputs, 0, inputs, 0, m_inputs.length);
+        inputs[m_inputs.length] = input;
+        m_inputs = inputs;
+        m_registeredMask |= bit;
+
+        // Read the new channel into both masks, so it doesn't start with a false edge.
+        if (input.get()) {
+            m_current |= bit;
+            m_previous |= bit;
+        }
+
+        if (!m_isScheduled) {
+            CommandScheduler.getInstance().addButton(this::sample);
+            m_isScheduled = true;
+        }
+    }
+
+    /**
+     * Reads every registered input into the snapshot. This is done automatically once per loop,
+     * so this only needs to be called to force a new read, which also starts a new pair of snapshots for rose() and fell().
+     */
+    public void sample() {
+        long mask = 0;
+        for (DigitalInput input : m_inputs) {
+            if (input.get()) {
+                mask |= 1L << input.getChannel();
+            }
+        }
+        m_previous = m_current;
+        m_current = mask;
+        m_timestamp = Timer.getFPGATimestamp();
+    }
+
+    /**
+     * Gets the raw value of a channel from the snapshot.
+     */
+    public boolean get(int channel) {
+        return (m_current & (1L << channel)) != 0;
+    }
+
+    /**
+     * Gets if a channel went from low to high between the last two snapshots.
+     */
+    public boolean rose(int channel) {
+        return (m_current & ~m_previous & (1L << channel)) != 0;
+    }
+
+    /**
+     * Gets if a channel went from high to low between the last two snapshots.
+     */
+    public boolean fell(int channel) {
+        return (~m_current & m_previous & (1L << channel)) != 0;
+    }
+
+    /**
+     * Gets the whole snapshot, bit n is channel n.
+     */
+    public long getMask() {
+        return m_current;
+    }
+
+    /**
+     * Gets the channels that changed between the last two snapshots, bit n is channel n.
+     */
+    public long getChangedMask() {
+        return m_current ^ m_previous;
+    }
+
+    /**
+     * Gets the channels being sampled, bit n is channel n.
+     */
+    public long getRegisteredMask() {
+        return m_registeredMask;
+    }
+
+    /**
+     * Gets when the snapshot was taken.
+     *
+     * @return the FPGA time in seconds.
+     */
+    public double getTimestamp() {
+        return m_timestamp;
+    }
+}
\ No newline at end of file
@@ -1,36 +1,83 @@
 package frc.robot.Toolkit;
 
-import edu.wpi.first.wpilibj.DigitalInput;
-
-import java.util.function.BiConsumer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
-import edu.wpi.first.wpilibj.AsynchronousInterrupt;
+import edu.wpi.first.wpilibj.Counter;
+import edu.wpi.first.wpilibj.DigitalInput;
 import edu.wpi.first.wpilibj.Timer;
+import edu.wpi.first.wpilibj2.command.Command;
 
 public class CT_DigitalInput {
-    private DigitalInput m_digitalInput;
+    /**
+     * Amount of edges kept in the edge history.
+     */
+    private static final int k_edgeHistorySize = 64;
+    /**
+     * Counter callback check periods. Without an expected rate the count is checked once a loop,
+     * with one it is checked twice per callback, within these limits.
+     */
+    private static final double k_defaultCallbackPeriod = 0.02;
+    private static final double k_minCallbackPeriod = 0.001;
+    private static final double k_maxCallbackPeriod = 0.1;
+
+    // Layout of m_state: the two flags, the last triggered edge type, then a 30 bit counter for each edge direction.
+    private static final long k_latchedBit = 1L;
+    private static final long k_handleBit = 1L << 1;
+    private static final int k_edgeTypeShift = 2;
+    private static final long k_edgeTypeMask = 3L << k_edgeTypeShift;
+    private static final int k_risingCountShift = 4;
+    private static final int k_fallingCountShift = 34;
+    private static final long k_countMask = (1L << 30) - 1;
+
+    private final DigitalInput m_digitalInput;
 
     private Runnable m_methodToRun;
     private Runnable m_lastMethodToRun;
-    private boolean m_isInterruptLatched;
-    private boolean m_negateLogic;
-    private double m_startTime;
-
-    private double m_ignoringInterruptIteration;
-    private boolean m_needToRelatchInterrupt;
+    private final boolean m_negateLogic;
+    private final int m_channel;
+    private boolean m_isSampled;
 
-    private boolean m_handleInterrupts;
-    private String m_lastEdgeTriggered;
+    /**
+     * Every piece of interrupt state written by both the robot thread and the interrupt thread, packed into one word.
+     * Changed with compare and set so no update is lost, and read with a single load so reads never wait.
+     */
+    private final AtomicLong m_state = new AtomicLong();
+
+    // Lockout and debounce, all compared against the FPGA timestamp of each edge.
+    private volatile double m_ignoreStartTime = Double.NEGATIVE_INFINITY;
+    private volatile double m_ignoreDuration;
+    // In microseconds, so both threads can push it later with one atomic max.
+    private final AtomicLong m_lockoutEndMicros = new AtomicLong(Long.MIN_VALUE);
+    private volatile double m_debounceTime;
+    private double m_lastAcceptedEdgeTime = Double.NEGATIVE_INFINITY;
+
+
+    private CT_InterruptService.Registration m_interruptRegistration;
+    private volatile CT_InterruptService.EdgeHandler m_interruptHandler;
+    private volatile boolean m_interruptOnRisingEdge;
+    private volatile boolean m_interruptOnFallingEdge;
+    private boolean m_isTrackingEdges;
+
+    // Each entry is the FPGA time in microseconds shifted left once, with the low bit set for rising edges.
+    // Only the interrupt's CT_InterruptService waiter writes, the entry is stored before the count so readers never see a count without its edge.
+    private final AtomicLongArray m_edgeHistory = new AtomicLongArray(k_edgeHistorySize);
+    private final AtomicLong m_edgeCount = new AtomicLong();
+
+    private volatile Counter m_counter;
+    private CT_InterruptService.Registration m_counterRegistration;
+    // The last multiple of the callback count that ran the counter callback.
+    private volatile int m_lastCallbackCount;
     
     /**
-     * The sole reason for seperate interrupt "state" flags (m_handleInterrupts and m_isInterruptLatched)
+     * The sole reason for seperate interrupt "state" flags (the handle and latched bits of m_state)
      * is so that there are seperate flags for simply handing the interrupt on conditions and doing relatively
      * complex logic within this class. Having the same variable for EVERY method to alter saw inconsistent and 
      * incorrect results, leading to that single flag being altered at inconsistent times when it probably should/shouldn't
-     * be. Additionally, the m_isInterruptLatched is more a replacement for calling enable/disableInterrupts, 
-     * while m_handleInterrupts is, as the name suggests, handling them not and necessarily enabling/disabling them alltogether. 
+     * be. Additionally, the latched bit is more a replacement for calling enable/disableInterrupts, 
+     * while the handle bit is, as the name suggests, handling them not and necessarily enabling/disabling them alltogether. 
      * There might be a way to simplify the flags down to one, but for now handleInterrupts will be with the
-     * onlyHandleInterruptsWhen method and everything else will use m_isInterruptLatched. 
+     * onlyHandleInterruptsWhen method and everything else will use the latched bit. 
      */
 
     /**
@@ -39,6 +86,24 @@ public class CT_DigitalInput {
      * the sensors, or searching for the absence of something. 
      */ 
 
+    /**
+     * The edges an interrupt can be triggered by.
+     */
+    public enum EdgeType {
+        None("None"), Rising("Rising Edge"), Falling("Falling Edge");
+
+        private final String m_name;
+
+        EdgeType(String name) {
+            m_name = name;
+        }
+
+        @Override
+        public String toString() {
+            return m_name;
+        }
+    }
+
     /**
      * Creates a default DigitalIO instance with the ability to negate the logic.
      * Used for sensors connected through DIO ports on the RoboRio. Limit Switches, Light Beam sensors, etc.
@@ -81,15 +146,10 @@ public class CT_DigitalInput {
      */
     public CT_DigitalInput(int pin, Runnable methodToRun, boolean negateLogic) { 
         m_digitalInput = new DigitalInput(pin);
+        m_channel = pin;
         m_negateLogic = negateLogic;
         m_methodToRun = methodToRun;
         m_lastMethodToRun = m_methodToRun;
-        m_isInterruptLatched = false;
-        m_startTime = 0;
-        m_ignoringInterruptIteration = 0;
-        m_needToRelatchInterrupt = false;
-        m_handleInterrupts = false;
-        m_lastEdgeTriggered = "None";
     }
 
     /**
@@ -126,7 +186,7 @@ public class CT_DigitalInput {
      * @return If the digital IO was tripped.
      */
     public boolean runWhenTripped() {
-        if(get() && !m_isInterruptLatched) {
+        if(get() && !isInterruptLatched()) {
 
             if(m_methodToRun != null) {
                 Runnable method = m_methodToRun;
@@ -145,42 +205,31 @@ public class CT_DigitalInput {
     /**
      * Sets an interrupt for the digital input. Can be used in conjunction with the 
      * onlyHandleInterruptsWhen() method to only run the method when certain conditions are met.
-     * To use a command, for example use: "() -> new PrintCommand("Interrupt Fired").schedule" for the runnable.
+     * To schedule a command, use setInterruptCommand() instead of creating and scheduling it in the runnable.
+     * The interrupt is waited on by a CT_InterruptService thread. Setting an interrupt again replaces the old one.
      * 
      * @param runnable the runnable that will run when the interrupt is fired.
      * @param interruptOnRisingEdge fire interrupt on the rising edge.
      * @param interruptOnFallingEdge fire interrupt on the falling edge.
      */
     public void setInterrupt(Runnable runnable, boolean interruptOnRisingEdge, boolean interruptOnFallingEdge) {
-
-        BiConsumer<Boolean, Boolean> callback = (risingEdge, fallingEdge) -> runInterruptMethod(runnable, risingEdge, fallingEdge);
-        AsynchronousInterrupt interrupt = new AsynchronousInterrupt(m_digitalInput, callback);
-        interrupt.setInterruptEdges(interruptOnRisingEdge, interruptOnFallingEdge);
-
-        interrupt.enable();
-        setInterruptLatched(true);
-        m_handleInterrupts = true;
+        registerInterrupt(interruptOnRisingEdge, interruptOnFallingEdge,
+            (risingEdge, timestamp) -> runInterruptMethod(runnable, risingEdge));
     }
 
     /**
      * Runs the runnable given by the user when the interrupt is fired and
-     * sets the m_lastEdgeTriggered variable to what edge just ran. 
+     * records what edge just ran. 
      */
-    private void runInterruptMethod(Runnable runnable, boolean risingEdge, boolean fallingEdge) {
-        if(risingEdge) {
-            m_lastEdgeTriggered = "Rising Edge";
-        } else if (fallingEdge) {
-            m_lastEdgeTriggered = "Falling Edge";
-        } else {
-            System.out.println("Unexpected output for edge callback");
-        }
+    private void runInterruptMethod(Runnable runnable, boolean risingEdge) {
+        recordTriggeredEdge(risingEdge);
         runnable.run();
     }
 
     /**
      * Sets an interrupt for the digital input. Can be used in conjunction with the 
      * onlyHandleInterruptsWhen() method to only run the method when certain conditions are met.
-     * To use a command, for example use: "() -> new PrintCommand("Interrupt Fired").schedule" for the runnable.
+     * To schedule a command, use setInterruptCommand() instead of creating and scheduling it in the runnable.
      * 
      * @param runnable the runnable that will run when the interrupt is fired.
      * @param interruptOnRisingEdge fire interrupt on the rising edge.
@@ -188,73 +237,329 @@ public class CT_DigitalInput {
      * @param time time in seconds for the interrupt to be ignored after the interrupt is activated.
      */
     public void setTimedInterrupt(Runnable runnable, boolean interruptOnRisingEdge, boolean interruptOnFallingEdge, double time) {
-        BiConsumer<Boolean, Boolean> callback = (risingEdge, fallingEdge) -> runTimedInterruptMethod(runnable, risingEdge, fallingEdge, time);
-        AsynchronousInterrupt interrupt = new AsynchronousInterrupt(m_digitalInput, callback);
-        interrupt.setInterruptEdges(interruptOnRisingEdge, interruptOnFallingEdge);
+        registerInterrupt(interruptOnRisingEdge, interruptOnFallingEdge,
+            (risingEdge, timestamp) -> runTimedInterruptMethod(runnable, risingEdge, time, timestamp));
+    }
+
+    /**
+     * Schedules a command when the interrupt is fired, without scheduling from the interrupt thread.
+     * The edge is queued and the command is scheduled on the main thread in the next CommandScheduler loop,
+     * any more edges before then are merged into that one. Create the command once and pass it here,
+     * instead of creating a new command in a runnable for every edge.
+     * Lockouts and debouncing apply the same as setInterrupt().
+     * 
+     * @param command the command to schedule.
+     * @param interruptOnRisingEdge fire interrupt on the rising edge.
+     * @param interruptOnFallingEdge fire interrupt on the falling edge.
+     */
+    public void setInterruptCommand(Command command, boolean interruptOnRisingEdge, boolean interruptOnFallingEdge) {
+        CT_EdgeCommandQueue.Binding binding = CT_EdgeCommandQueue.getInstance().bind(command);
+        registerInterrupt(interruptOnRisingEdge, interruptOnFallingEdge, (risingEdge, timestamp) -> {
+            recordTriggeredEdge(risingEdge);
+            binding.signal(timestamp);
+        });
+    }
 
-        interrupt.enable();
-        setInterruptLatched(true);
-        m_handleInterrupts = true;
+    /**
+     * Stops the interrupt set by setInterrupt(), setTimedInterrupt() or setInterruptCommand(). 
+     * The interrupt is freed unless the edge history is still being tracked.
+     */
+    public void cancelInterrupt() {
+        CT_InterruptService.Registration registration = null;
+        synchronized (this) {
+            m_interruptHandler = null;
+            if (m_interruptRegistration != null && !m_isTrackingEdges) {
+                registration = m_interruptRegistration;
+                m_interruptRegistration = null;
+            }
+            setFlags(false, false);
+        }
+        // Cancelling waits for the interrupt's thread, which could be in a handler waiting on this lock.
+        if (registration != null) {
+            registration.cancel();
+        }
     }
 
     /**
-     * Runs the runnable given by the user when the interrupt is fired and
-     * sets the m_lastEdgeTriggered variable to what edge just ran. 
+     * Starts recording the time of every edge, without an interrupt method.
+     * Edges are always recorded while an interrupt is set, this keeps them recorded after cancelInterrupt().
      */
-    private void runTimedInterruptMethod(Runnable runnable, boolean risingEdge, boolean fallingEdge, double time) {
-        if(risingEdge) {
-            m_lastEdgeTriggered = "Rising Edge";
-        } else if (fallingEdge) {
-            m_lastEdgeTriggered = "Falling Edge";
-        } else {
-            System.out.println("Unexpected output for edge callback");
+    public synchronized void trackEdges() {
+        m_isTrackingEdges = true;
+        watchEdges();
+    }
+
+    /**
+     * Replaces any interrupt method already set, so the old one doesn't keep firing.
+     */
+    private synchronized void registerInterrupt(boolean risingEdge, boolean fallingEdge, CT_InterruptService.EdgeHandler handler) {
+        m_interruptOnRisingEdge = risingEdge;
+        m_interruptOnFallingEdge = fallingEdge;
+        m_interruptHandler = handler;
+        watchEdges();
+        setFlags(true, true);
+    }
+
+    /**
+     * Both edges are always watched so the edge history is complete, the interrupt method only gets the edges it asked for.
+     */
+    private void watchEdges() {
+        if (m_interruptRegistration == null) {
+            m_interruptRegistration = CT_InterruptService.getInstance().register(m_digitalInput, true, true, this::onEdge);
         }
+    }
 
-        if((Timer.getFPGATimestamp() - m_startTime) >= time) {
-            if(m_isInterruptLatched && m_handleInterrupts) {
-                runnable.run();
-                // System.out.println("FPGA Time: " + Timer.getFPGATimestamp());
-                // System.out.println("Start Time: " + m_startTime);
-                m_startTime = Timer.getFPGATimestamp();
-            } else { /* Do Nothing */ }
+    /**
+     * Runs on the interrupt's CT_InterruptService waiter for every edge. Every edge goes in the history,
+     * only edges outside the lockout and debounce time go to the interrupt method.
+     */
+    private void onEdge(boolean risingEdge, double timestamp) {
+        long count = m_edgeCount.get();
+        m_edgeHistory.set((int) (count % k_edgeHistorySize), (Math.round(timestamp * 1e6) << 1) | (risingEdge ? 1 : 0));
+        m_edgeCount.set(count + 1);
+
+        CT_InterruptService.EdgeHandler handler = m_interruptHandler;
+        if (handler == null || !(risingEdge ? m_interruptOnRisingEdge : m_interruptOnFallingEdge) || isLockedOut(timestamp)) {
+            return;
+        }
+        if (timestamp - m_lastAcceptedEdgeTime < m_debounceTime) {
+            return;
         }
+        m_lastAcceptedEdgeTime = timestamp;
+        handler.onEdge(risingEdge, timestamp);
+    }
+
+    private boolean isLockedOut(double time) {
+        return time * 1e6 < m_lockoutEndMicros.get() || time < m_ignoreStartTime + m_ignoreDuration;
+    }
+
+    /**
+     * Runs the runnable given by the user when the interrupt is fired and
+     * records what edge just ran. 
+     */
+    private void runTimedInterruptMethod(Runnable runnable, boolean risingEdge, double time, double timestamp) {
+        long state = recordTriggeredEdge(risingEdge);
+
+        // Edges inside the lockout never get here, so the next lockout starts from this edge.
+        if((state & k_latchedBit) != 0 && (state & k_handleBit) != 0) {
+            runnable.run();
+            m_lockoutEndMicros.accumulateAndGet(Math.round((timestamp + time) * 1e6), Math::max);
+        } else { /* Do Nothing */ }
     }
 
     /**
      * Gets the last edge triggered by the setInterrupt methods.
+     * 
+     * @return "None", "Rising Edge" or "Falling Edge".
      */
     public String getLastEdgeTriggered() {
-        return m_lastEdgeTriggered;
+        return getLastEdgeType().toString();
+    }
+
+    /**
+     * Gets the last edge triggered by the setInterrupt methods.
+     */
+    public EdgeType getLastEdgeType() {
+        return EdgeType.values()[(int) ((m_state.get() & k_edgeTypeMask) >>> k_edgeTypeShift)];
+    }
+
+    /**
+     * Gets the amount of rising edges that ran the interrupt method. Wraps around after about a billion edges.
+     */
+    public long getRisingEdgeCount() {
+        return (m_state.get() >>> k_risingCountShift) & k_countMask;
+    }
+
+    /**
+     * Gets the amount of falling edges that ran the interrupt method. Wraps around after about a billion edges.
+     */
+    public long getFallingEdgeCount() {
+        return (m_state.get() >>> k_fallingCountShift) & k_countMask;
+    }
+
+    /**
+     * Sets the last edge type and bumps its counter in one update.
+     * 
+     * @return the new state.
+     */
+    private long recordTriggeredEdge(boolean risingEdge) {
+        EdgeType type = risingEdge ? EdgeType.Rising : EdgeType.Falling;
+        int countShift = risingEdge ? k_risingCountShift : k_fallingCountShift;
+        while (true) {
+            long state = m_state.get();
+            long count = ((state >>> countShift) + 1) & k_countMask;
+            long next = (state & ~k_edgeTypeMask & ~(k_countMask << countShift))
+                | ((long) type.ordinal() << k_edgeTypeShift)
+                | (count << countShift);
+            if (m_state.compareAndSet(state, next)) {
+                return next;
+            }
+        }
+    }
+
+    /**
+     * Gets the amount of edges seen since an interrupt was set or trackEdges() was called.
+     */
+    public long getEdgeCount() {
+        return m_edgeCount.get();
+    }
+
+    /**
+     * Gets the time of the latest edge, stamped by the FPGA when it happened.
+     * 
+     * @return the FPGA time in seconds, or NaN if no edges have been seen.
+     */
+    public double getLastEdgeTime() {
+        long count = m_edgeCount.get();
+        return count == 0 ? Double.NaN : edgeTime(m_edgeHistory.get((int) ((count - 1) % k_edgeHistorySize)));
+    }
+
+    /**
+     * Gets the time since the latest edge.
+     * 
+     * @return the time in seconds, or infinity if no edges have been seen.
+     */
+    public double getTimeSinceLastEdge() {
+        double lastEdge = getLastEdgeTime();
+        return Double.isNaN(lastEdge) ? Double.POSITIVE_INFINITY : Timer.getFPGATimestamp() - lastEdge;
+    }
+
+    /**
+     * Gets how long the latest complete pulse lasted. A pulse is the time get() was true, so with negated logic
+     * it is the time the raw signal was low. For a beam break, the length of the game piece divided by this is its speed.
+     * 
+     * @return the pulse width in seconds, or NaN if no complete pulse has been seen.
+     */
+    public double getPulseWidth() {
+        // A pulse starts on the edge that makes get() true and ends on the other one.
+        boolean startsRising = !m_negateLogic;
+        while (true) {
+            long count = m_edgeCount.get();
+            double width = Double.NaN;
+            for (long i = count - 1; i >= 1 && i >= count - k_edgeHistorySize + 1; i--) {
+                long end = m_edgeHistory.get((int) (i % k_edgeHistorySize));
+                long start = m_edgeHistory.get((int) ((i - 1) % k_edgeHistorySize));
+                if (isRising(end) != startsRising && isRising(start) == startsRising) {
+                    width = edgeTime(end) - edgeTime(start);
+                    break;
+                }
+            }
+            if (!isLapped(count)) {
+                return width;
+            }
+        }
+    }
+
+    /**
+     * Gets the time between the latest two edges in the same direction as the latest edge.
+     * 
+     * @return the period in seconds, or NaN if there haven't been enough edges.
+     */
+    public double getPeriod() {
+        while (true) {
+            long count = m_edgeCount.get();
+            double period = Double.NaN;
+            if (count >= 2) {
+                long newest = m_edgeHistory.get((int) ((count - 1) % k_edgeHistorySize));
+                for (long i = count - 2; i >= 0 && i >= count - k_edgeHistorySize; i--) {
+                    long previous = m_edgeHistory.get((int) (i % k_edgeHistorySize));
+                    if (isRising(previous) == isRising(newest)) {
+                        period = edgeTime(newest) - edgeTime(previous);
+                        break;
+                    }
+                }
+            }
+            if (!isLapped(count)) {
+                return period;
+            }
+        }
+    }
+
+    /**
+     * Gets the frequency of the signal from the latest period.
+     * 
+     * @return the frequency in Hz, or 0 if there haven't been enough edges.
+     */
+    public double getFrequency() {
+        double period = getPeriod();
+        return Double.isNaN(period) || period <= 0 ? 0 : 1 / period;
+    }
+
+    /**
+     * Copies the edge history, newest edge first.
+     * 
+     * @param timestamps filled with the FPGA time in seconds of each edge.
+     * @param risingEdges filled with true for rising edges and false for falling edges.
+     * @return the amount of edges copied.
+     */
+    public int copyEdges(double[] timestamps, boolean[] risingEdges) {
+        while (true) {
+            long count = m_edgeCount.get();
+            int copied = (int) Math.min(Math.min(count, k_edgeHistorySize - 1), Math.min(timestamps.length, risingEdges.length));
+            for (int i = 0; i < copied; i++) {
+                long edge = m_edgeHistory.get((int) ((count - 1 - i) % k_edgeHistorySize));
+                timestamps[i] = edgeTime(edge);
+                risingEdges[i] = isRising(edge);
+            }
+            if (!isLapped(count)) {
+                return copied;
+            }
+        }
+    }
+
+    /**
+     * Checks if the interrupt thread could have written over the oldest entry while the history was being read.
+     * At most one less than the whole history is read, so this only happens once a new edge has been added.
+     */
+    private boolean isLapped(long count) {
+        return m_edgeCount.get() != count;
+    }
+
+    private static double edgeTime(long edge) {
+        return (edge >>> 1) / 1e6;
+    }
+
+    private static boolean isRising(long edge) {
+        return (edge & 1) != 0;
     }
 
     /**
      * This method is for if you want to ignore interrupts after a certain action as taken place.
-     * Use this method in a periodic to gain full effect as it relies on iteration to count time.
-     * Use this method in conjunction with ignoreInterruptsNow().
+     * Sets how long interrupts are ignored after ignoreInterruptsNow() is called. Only needs to be called once,
+     * the time is checked against the FPGA timestamp of each edge, but calling it in a periodic still works.
+     * Use this method in conjunction with ignoreInterruptsNow(), or use lockOutInterruptsFor() for both at once.
      * 
      * @param seconds time in seconds interrupts will be ignored after ignoreInterruptsNow() is called.
      */
     public void ignoreInterruptsFor(double seconds) {
-        if(m_needToRelatchInterrupt) {
-            m_ignoringInterruptIteration++;
-
-            if(m_ignoringInterruptIteration >= (seconds * 50)) {
-                //System.out.println("Interrupts can now be seen");
-                setInterruptLatched(true);
-                m_needToRelatchInterrupt = false;
-                m_ignoringInterruptIteration = 0;
-            }
-        }
+        m_ignoreDuration = seconds;
     }
 
     /**
-     * This method works with the ignoreInterruptsFor() method, which should be called in a periodic.
+     * This method works with the ignoreInterruptsFor() method.
      * Call this method when you want interrupts to be ignored for the amount of time passed into ignoreInterruptsFor()
      */
     public void ignoreInterruptsNow() {
-        //System.out.println("Ignoring Interrupts");
-        setInterruptLatched(false);
-        m_needToRelatchInterrupt = true;
+        m_ignoreStartTime = Timer.getFPGATimestamp();
+    }
+
+    /**
+     * Ignores interrupts from now until the given time has passed.
+     * 
+     * @param seconds time in seconds interrupts will be ignored.
+     */
+    public void lockOutInterruptsFor(double seconds) {
+        m_lockoutEndMicros.accumulateAndGet(Math.round((Timer.getFPGATimestamp() + seconds) * 1e6), Math::max);
+    }
+
+    /**
+     * Ignores any edge that comes sooner than the given time after the last edge that ran the interrupt method.
+     * The first edge of a bounce runs the method right away and the rest of the bounce is ignored.
+     * 
+     * @param seconds the debounce time, 0 turns debouncing off.
+     */
+    public void setDebounceTime(double seconds) {
+        m_debounceTime = seconds;
     }
 
     /**
@@ -263,22 +568,42 @@ public class CT_DigitalInput {
      * @param conditions the conditions to be met for the interrupt to be activated. 
      */
     public void onlyHandleInterruptsWhen(boolean... conditions) {
-        m_handleInterrupts = isAllTrue(conditions);
+        setFlag(k_handleBit, isAllTrue(conditions));
     }
 
     /**
-     * Setter method for the latch interrupt variable. Will decide if said interrupt will be run or not.
-     * 
-     * @param latchInterrupt boolean variable to be set to m_isInterruptLatched
+     * Sets one of the flags in the state word without touching the rest of it.
      */
-    private void setInterruptLatched(boolean latchInterrupt) {
-        if(latchInterrupt != m_isInterruptLatched)
-            System.out.println("Interrupt Latched was: " + m_isInterruptLatched);
-        m_isInterruptLatched = latchInterrupt;
+    private void setFlag(long bit, boolean value) {
+        while (true) {
+            long state = m_state.get();
+            long next = value ? state | bit : state & ~bit;
+            if (state == next || m_state.compareAndSet(state, next)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Sets the latched flag, which decides if the interrupt will be run or not, and the handle flag together.
+     */
+    private void setFlags(boolean latchInterrupt, boolean handleInterrupts) {
+        while (true) {
+            long state = m_state.get();
+            long next = (state & ~(k_latchedBit | k_handleBit))
+                | (latchInterrupt ? k_latchedBit : 0)
+                | (handleInterrupts ? k_handleBit : 0);
+            if (state == next || m_state.compareAndSet(state, next)) {
+                return;
+            }
+        }
     }
 
+    /**
+     * Gets if an interrupt is set and not currently ignored.
+     */
     public boolean isInterruptLatched() {
-        return m_isInterruptLatched;
+        return (m_state.get() & k_latchedBit) != 0 && !isLockedOut(Timer.getFPGATimestamp());
     }
 
     /**
@@ -289,10 +614,190 @@ public class CT_DigitalInput {
      * @return the status of the digital input.
      */
     public boolean get() {
+        boolean value = m_isSampled ? CT_DIOSampler.getInstance().get(m_channel) : m_digitalInput.get();
+
         if(m_negateLogic)
-            return !m_digitalInput.get();
+            return !value;
         else
-            return m_digitalInput.get();
+            return value;
+    }
+
+    /**
+     * Reads this input from the CT_DIOSampler snapshot, which reads every sampled input once per loop.
+     * After this get(), runWhenTripped() and the edge checks are plain bit tests instead of a HAL call each.
+     */
+    public void useSampler() {
+        if (!m_isSampled) {
+            CT_DIOSampler.getInstance().register(m_digitalInput);
+            m_isSampled = true;
+        }
+    }
+
+    /**
+     * Gets if get() became true since the last loop. Starts using the sampler if it isn't already.
+     */
+    public boolean becameTrue() {
+        useSampler();
+        return m_negateLogic ? CT_DIOSampler.getInstance().fell(m_channel) : CT_DIOSampler.getInstance().rose(m_channel);
+    }
+
+    /**
+     * Gets if get() became false since the last loop. Starts using the sampler if it isn't already.
+     */
+    public boolean becameFalse() {
+        useSampler();
+        return m_negateLogic ? CT_DIOSampler.getInstance().rose(m_channel) : CT_DIOSampler.getInstance().fell(m_channel);
+    }
+
+    /**
+     * Counts edges with an FPGA counter on the same channel, for signals too fast for interrupts,
+     * such as a flywheel index pulse or game pieces streaming past a beam break.
+     * Every edge is counted in hardware, no matter how close together they are.
+     * 
+     * @param countRisingEdge count rising edges.
+     * @param countFallingEdge count falling edges.
+     */
+    public synchronized void useCounter(boolean countRisingEdge, boolean countFallingEdge) {
+        if (m_counter == null) {
+            m_counter = new Counter(m_digitalInput);
+        }
+        m_counter.setUpSourceEdge(countRisingEdge, countFallingEdge);
+    }
+
+    /**
+     * Gets the amount of edges counted since useCounter() or resetCount().
+     * 
+     * @return the count, or 0 if the counter isn't used.
+     */
+    public int getCount() {
+        Counter counter = m_counter;
+        return counter == null ? 0 : counter.get();
+    }
+
+    /**
+     * Sets the count back to 0.
+     */
+    public synchronized void resetCount() {
+        if (m_counter != null) {
+            m_counter.reset();
+            m_lastCallbackCount = 0;
+        }
+    }
+
+    /**
+     * Gets the time between the latest two counted edges, measured by the FPGA.
+     * 
+     * @return the period in seconds, or NaN if the counter isn't used.
+     */
+    public double getCounterPeriod() {
+        Counter counter = m_counter;
+        return counter == null ? Double.NaN : counter.getPeriod();
+    }
+
+    /**
+     * Gets the rate edges are being counted.
+     * 
+     * @return the rate in counts per second, 0 if the signal stopped or the counter isn't used.
+     */
+    public double getCounterRate() {
+        Counter counter = m_counter;
+        return counter == null || counter.getStopped() ? 0 : counter.getRate();
+    }
+
+    /**
+     * Sets the longest time between counts before the signal is seen as stopped and the rate reads 0.
+     * 
+     * @param seconds the max period.
+     */
+    public synchronized void setCounterMaxPeriod(double seconds) {
+        if (m_counter != null) {
+            m_counter.setMaxPeriod(seconds);
+        }
+    }
+
+    /**
+     * Runs a method once every given amount of counts, instead of once per edge like an interrupt.
+     * The count is checked by a CT_InterruptService poll once a loop, so if several multiples pass between checks
+     * the method still only runs once. Uses the counter, starting it on rising edges if useCounter() wasn't called.
+     * 
+     * @param runnable the method to run, on the CT_InterruptService poll thread.
+     * @param everyCounts how many counts between runs.
+     */
+    public void setCounterCallback(Runnable runnable, int everyCounts) {
+        setCounterCallback(runnable, everyCounts, 0);
+    }
+
+    /**
+     * Runs a method once every given amount of counts, checking the count only as often as the expected rate needs.
+     * The count is checked twice for every callback expected, so the thread only wakes up a few times per callback
+     * no matter how fast the edges come. Faster edges than expected can run the method late, or once for several multiples.
+     * 
+     * @param runnable the method to run, on the CT_InterruptService poll thread.
+     * @param everyCounts how many counts between runs.
+     * @param expectedCountsPerSecond the fastest the counts are expected to come, 0 to check once a loop.
+     */
+    public void setCounterCallback(Runnable runnable, int everyCounts, double expectedCountsPerSecond) {
+        if (everyCounts < 1) {
+            throw new IllegalArgumentException("CT_DigitalInput counter callback needs at least 1 count between runs");
+        }
+        double period = k_defaultCallbackPeriod;
+        if (expectedCountsPerSecond > 0) {
+            period = everyCounts / expectedCountsPerSecond / 2;
+            period = Math.max(k_minCallbackPeriod, Math.min(period, k_maxCallbackPeriod));
+        }
+        cancelCounterCallback();
+        synchronized (this) {
+            registerCounterCallback(runnable, everyCounts, period);
+        }
+    }
+
+    private void registerCounterCallback(Runnable runnable, int everyCounts, double period) {
+        if (m_counter == null) {
+            useCounter(true, false);
+        }
+        Counter counter = m_counter;
+        int startCount = counter.get();
+        m_lastCallbackCount = startCount - Math.floorMod(startCount, everyCounts);
+        m_counterRegistration = CT_InterruptService.getInstance().registerPoll(() -> {
+            int count = counter.get();
+            if (count < m_lastCallbackCount) {
+                // The count was reset.
+                m_lastCallbackCount = count - Math.floorMod(count, everyCounts);
+            }
+            if (count - m_lastCallbackCount >= everyCounts) {
+                m_lastCallbackCount = count - Math.floorMod(count, everyCounts);
+                runnable.run();
+            }
+        }, period);
+    }
+
+    /**
+     * Stops the counter and any counter callback, and frees the counter.
+     */
+    public void stopCounter() {
+        cancelCounterCallback();
+        synchronized (this) {
+            // Only closed once nothing polls it, unless a new callback was set in the meantime.
+            if (m_counter != null && m_counterRegistration == null) {
+                m_counter.close();
+                m_counter = null;
+            }
+        }
+    }
+
+    /**
+     * Stops the counter callback and waits for it to finish if it is running.
+     * Done outside the lock, since a running callback could be waiting on it.
+     */
+    private void cancelCounterCallback() {
+        CT_InterruptService.Registration registration;
+        synchronized (this) {
+            registration = m_counterRegistration;
+            m_counterRegistration = null;
+        }
+        if (registration != null) {
+            registration.cancel();
+        }
     }
 
     /**
@@ -0,0 +1,189 @@
+package frc.robot.Toolkit;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import edu.wpi.first.wpilibj.Timer;
+import edu.wpi.first.wpilibj2.command.Command;
+import edu.wpi.first.wpilibj2.command.CommandScheduler;
+
+/**
+ * Hands edges seen on the interrupt thread to the CommandScheduler, so commands are only ever scheduled from the main thread.
+ * An edge only marks its binding as pending and puts it in a bounded lock free queue, which the scheduler drains
+ * once per loop. A binding is in the queue at most once, so a burst of edges in one loop schedules its command once.
+ *
+ * Use:
+ * CT_DigitalInput beamBreak = new CT_DigitalInput(0);
+ * beamBreak.setInterruptCommand(new IndexCommand(), true, false);
+ */
+public final class CT_EdgeCommandQueue {
+
+    /**
+     * Size of the queue, a power of two. Each binding takes at most one slot.
+     */
+    private static final int k_capacity = 64;
+    private static final int k_mask = k_capacity - 1;
+
+    private static final CT_EdgeCommandQueue k_instance = new CT_EdgeCommandQueue();
+
+    // A bounded multi producer ring. Each slot's sequence says if it is free for the producer at that position,
+    // or filled for the consumer, so producers only race on the tail and the consumer never takes a lock.
+    private final AtomicReferenceArray<Binding> m_slots = new AtomicReferenceArray<>(k_capacity);
+    private final AtomicLongArray m_sequences = new AtomicLongArray(k_capacity);
+    private final AtomicLong m_tail = new AtomicLong();
+    private long m_head;
+
+    private final AtomicLong m_droppedCount = new AtomicLong();
+    private final AtomicLong m_coalescedCount = new AtomicLong();
+    private long m_dispatchCount;
+    private double m_totalLatency;
+    private double m_maxLatency;
+
+    /**
+     * A preallocated command that is scheduled on the main thread after edges are signaled.
+     */
+    public final class Binding {
+        private final Command m_command;
+        private final AtomicBoolean m_isQueued = new AtomicBoolean();
+        private final AtomicInteger m_pendingEdges = new AtomicInteger();
+        private volatile double m_firstEdgeTime;
+
+        private Binding(Command command) {
+            m_command = command;
+        }
+
+        /**
+         * Marks an edge. Safe to call from any thread, never blocks and never allocates.
+         *
+         * @param timestamp the FPGA time in seconds of the edge, used for the latency statistics.
+         */
+        public void signal(double timestamp) {
+            if (m_pendingEdges.getAndIncrement() == 0) {
+                m_firstEdgeTime = timestamp;
+            }
+            if (m_isQueued.compareAndSet(false, true) && !offer(this)) {
+                m_isQueued.set(false);
+                m_droppedCount.addAndGet(m_pendingEdges.getAndSet(0));
+            }
+        }
+
+        public Command getCommand() {
+            return m_command;
+        }
+    }
+
+    private CT_EdgeCommandQueue() {
+        for (int i = 0; i < k_capacity; i++) {
+            m_sequences.set(i, i);
+        }
+        CommandScheduler.getInstance().addButton(this::drain);
+    }
+
+    public static CT_EdgeCommandQueue getInstance() {
+        return k_instance;
+    }
+
+    /**
+     * Creates a binding for a command. Create it once and signal it for every edge.
+     *
+     * @param command the command to schedule.
+     */
+    public Binding bind(Command command) {
+        return new Binding(command);
+    }
+
+    /**
+     * Schedules the command of every binding signaled since the last drain. Runs every CommandScheduler loop.
+     */
+    public void drain() {
+        Binding binding;
+        while ((binding = poll()) != null) {
+            // Cleared before the edges are taken, so an edge after this queues the binding again for the next loop.
+            binding.m_isQueued.set(false);
+            double firstEdgeTime = binding.m_firstEdgeTime;
+            int edges = binding.m_pendingEdges.getAndSet(0);
+            if (edges == 0) {
+                continue;
+            }
+            m_coalescedCount.addAndGet(edges - 1);
+            binding.m_command.schedule();
+
+            double latency = Timer.getFPGATimestamp() - firstEdgeTime;
+            m_dispatchCount++;
+            m_totalLatency += latency;
+            m_maxLatency = Math.max(m_maxLatency, latency);
+        }
+    }
+
+    /**
+     * Gets the amount of edges lost because the queue was full.
+     */
+    public long getDroppedCount() {
+        return m_droppedCount.get();
+    }
+
+    /**
+     * Gets the amount of edges merged into an edge already waiting in the same loop.
+     */
+    public long getCoalescedCount() {
+        return m_coalescedCount.get();
+    }
+
+    /**
+     * Gets the amount of times a command was scheduled.
+     */
+    public long getDispatchCount() {
+        return m_dispatchCount;
+    }
+
+    /**
+     * Gets the average time from the first edge of a burst to its command being scheduled.
+     *
+     * @return the latency in seconds.
+     */
+    public double getAverageLatency() {
+        return m_dispatchCount == 0 ? 0 : m_totalLatency / m_dispatchCount;
+    }
+
+    /**
+     * Gets the longest time from the first edge of a burst to its command being scheduled.
+     *
+     * @return the latency in seconds.
+     */
+    public double getMaxLatency() {
+        return m_maxLatency;
+    }
+
+    private boolean offer(Binding binding) {
+        while (true) {
+            long tail = m_tail.get();
+            int index = (int) (tail & k_mask);
+            long difference = m_sequences.get(index) - tail;
+            if (difference == 0) {
+                if (m_tail.compareAndSet(tail, tail + 1)) {
+                    m_slots.set(index, binding);
+                    m_sequences.set(index, tail + 1);
+                    return true;
+                }
+            } else if (difference < 0) {
+                return false;
+            }
+        }
+    }
+
+    // Only called on the main thread.
+    private Binding poll() {
+        int index = (int) (m_head & k_mask);
+        if (m_sequences.get(index) != m_head + 1) {
+            return null;
+        }
+        Binding binding = m_slots.get(index);
+        m_slots.set(index, null);
+        m_sequences.set(index, m_head + k_capacity);
+        m_head++;
+        return binding;
+    }
+}
\ No newline at end of file
@@ -1,108 +1,798 @@
 package frc.robot.Toolkit;
 
+import java.util.concurrent.CompletableFuture;
+
+import com.ctre.phoenix.ErrorCode;
 import com.ctre.phoenix.sensors.PigeonIMU;
 import com.ctre.phoenix.sensors.PigeonIMU.CalibrationMode;
+import com.ctre.phoenix.sensors.PigeonIMU.PigeonState;
+import com.ctre.phoenix.sensors.PigeonIMU_StatusFrame;
 import edu.wpi.first.wpilibj.ADXRS450_Gyro;
 import edu.wpi.first.wpilibj.SPI.Port;
+import edu.wpi.first.wpilibj.Timer;
 import edu.wpi.first.wpilibj.geometry.Rotation2d;
+import edu.wpi.first.wpilibj2.command.CommandScheduler;
 
 public class CT_Gyro {
 
-    private ADXRS450_Gyro m_gyro;
-    private PigeonIMU m_pigeon;
+    /**
+     * Amount of snapshots kept for getYawAt(). At one snapshot per 20ms loop this is a bit over 2.5 seconds.
+     */
+    private static final int k_historySize = 128;
+    /**
+     * Default time constant of the filtered rate. Long enough to smooth out gyro noise,
+     * short enough to lag only a few loops behind.
+     */
+    private static final double k_defaultRateTimeConstant = 0.06;
+
+    private final CT_GyroBackend m_backend;
+    private final boolean m_hasAttitude;
+
+    private double[] m_yawPitchRollRate = new double[4];
+    private double[] m_acceleration = new double[3];
+    private SignalProfile m_signalProfile = SignalProfile.FullAttitude;
+
+    private final CompletableFuture<CT_Gyro> m_calibration = new CompletableFuture<>();
 
-    private double[] m_yawPitchRoll = new double[3];
-    private GyroType m_gyroType;
+    private final Attitude m_attitude = new Attitude();
+    private double m_headingRadians;
+    private double m_headingCos = 1;
+    private double m_headingSin;
+
+    // The continuous angle is built from the wrapped yaw, so backends that wrap don't cause jumps.
+    private double m_rateTimeConstant = k_defaultRateTimeConstant;
+    private double m_lastWrappedYaw;
+    private double m_lastSampleTime;
+    private boolean m_hasSample;
+
+    // The history keeps the unwrapped yaw so interpolating across +-180 doesn't jump.
+    private final double[] m_historyTimes = new double[k_historySize];
+    private final double[] m_historyYaws = new double[k_historySize];
+    private final double[] m_historyRates = new double[k_historySize];
+    private int m_historyHead;
+    private int m_historySize;
 
     public enum GyroType {
-        ADXRS450, PigeonImu
+        ADXRS450, PigeonImu, Simulated
+    }
+
+    /**
+     * Which signals the robot reads from the gyro. The PigeonIMU only sends the CAN frames
+     * a profile needs quickly, and slows every other frame down to save bus bandwidth.
+     */
+    public enum SignalProfile {
+        /**
+         * Only the yaw. The rate is worked out from the change in yaw instead of its own frame.
+         */
+        YawOnly,
+        /**
+         * Yaw, pitch, roll and the measured yaw rate. This is the default.
+         */
+        FullAttitude,
+        /**
+         * Everything in FullAttitude plus the accelerometer.
+         */
+        RawAccel
+    }
+
+    /**
+     * A snapshot of every gyro value, all read in the same transaction.
+     * The gyro refreshes the same instance in place, so copy the values out if they need to be kept across loops.
+     */
+    public static final class Attitude {
+        /**
+         * The yaw in degrees, from -180 to 180.
+         */
+        public double yaw;
+        /**
+         * The pitch in degrees, from -90 to 90. NaN on the ADXRS450.
+         */
+        public double pitch;
+        /**
+         * The roll in degrees, from -90 to 90. NaN on the ADXRS450.
+         */
+        public double roll;
+        /**
+         * The continuous yaw in degrees since the last reset. It doesn't wrap, so turning twice to the left reads 720.
+         */
+        public double angle;
+        /**
+         * The yaw rate in degrees per second.
+         */
+        public double rate;
+        /**
+         * The yaw rate in degrees per second, low pass filtered over the snapshots.
+         */
+        public double filteredRate;
+        /**
+         * The FPGA time in seconds the snapshot was taken.
+         */
+        public double timestamp;
+        /**
+         * If the gyro had finished calibrating when the snapshot was taken. Values read before then are not reliable.
+         */
+        public boolean calibrated;
+        /**
+         * The acceleration on each axis in g. NaN unless the RawAccel signal profile is used.
+         */
+        public double accelX = Double.NaN;
+        public double accelY = Double.NaN;
+        public double accelZ = Double.NaN;
+
+        /**
+         * Copies every value of this snapshot into another one.
+         */
+        public void copyTo(Attitude other) {
+            other.yaw = yaw;
+            other.pitch = pitch;
+            other.roll = roll;
+            other.angle = angle;
+            other.rate = rate;
+            other.filteredRate = filteredRate;
+            other.timestamp = timestamp;
+            other.calibrated = calibrated;
+            other.accelX = accelX;
+            other.accelY = accelY;
+            other.accelZ = accelZ;
+        }
     }
 
     /**
      * ADXRS450 constructor.
+     * The gyro calibrates for about 5 seconds on a background thread, so robot init doesn't wait on it.
+     * Use isCalibrated() or getCalibrationFuture() to know when it is done. Until then every value reads 0.
      * 
      * @param SPI_Port port that the gyro is connected to.
      */
     public CT_Gyro(Port SPI_Port) {
-        m_gyro = new ADXRS450_Gyro(SPI_Port);
-        m_gyro.calibrate();
-        m_gyroType = GyroType.ADXRS450;
+        this(new ADXRS450Backend(SPI_Port), true);
     }
 
     /**
      * PigeonIMU constructor.
+     * The Pigeon calibrates on its own after this, use isCalibrated() or getCalibrationFuture() to know when it is done.
      * 
      * @param can_ID the Can ID the pigeon is connected to.
      */
     public CT_Gyro(int can_ID) {
-        m_pigeon = new PigeonIMU(can_ID);
-        m_pigeon.enterCalibrationMode(CalibrationMode.BootTareGyroAccel);
-        m_gyroType = GyroType.PigeonImu;
+        this(new PigeonIMUBackend(can_ID), true);
+    }
+
+    /**
+     * Creates a gyro on any backend, such as a CT_SimulatedGyro.
+     * 
+     * @param backend the hardware or simulation the gyro reads from.
+     * @param updateEveryLoop if the snapshot should be refreshed by the CommandScheduler every loop. 
+     * Pass false when running off the robot, and call update() yourself.
+     */
+    public CT_Gyro(CT_GyroBackend backend, boolean updateEveryLoop) {
+        m_backend = backend;
+        m_hasAttitude = backend.hasAttitude();
+        if (!m_hasAttitude) {
+            m_attitude.pitch = Double.NaN;
+            m_attitude.roll = Double.NaN;
+        }
+
+        m_backend.setSignalProfile(m_signalProfile);
+
+        if (updateEveryLoop) {
+            update();
+            CommandScheduler.getInstance().addButton(this::update);
+        }
+    }
+
+    /**
+     * Reads the gyro into the snapshot. This is done automatically once per CommandScheduler loop
+     * when it polls its buttons, and every getter only reads the snapshot, so this only needs to be called to force a new read.
+     */
+    public void update() {
+        m_backend.read(m_yawPitchRollRate);
+
+        double yaw = m_yawPitchRollRate[0];
+        if (m_hasAttitude) {
+            m_attitude.pitch = m_yawPitchRollRate[1];
+            m_attitude.roll = m_yawPitchRollRate[2];
+        }
+        m_attitude.rate = m_yawPitchRollRate[3];
+        if (m_signalProfile == SignalProfile.RawAccel && m_backend.readAcceleration(m_acceleration)) {
+            m_attitude.accelX = m_acceleration[0];
+            m_attitude.accelY = m_acceleration[1];
+            m_attitude.accelZ = m_acceleration[2];
+        }
+        m_attitude.yaw = Math.IEEEremainder(yaw, 360.0);
+        m_attitude.timestamp = m_backend.getTimestamp();
+        m_attitude.calibrated = m_backend.isCalibrated();
+        updateContinuous();
+
+        m_headingRadians = Math.toRadians(m_attitude.yaw);
+        m_headingCos = Math.cos(m_headingRadians);
+        m_headingSin = Math.sin(m_headingRadians);
+
+        if (!m_attitude.calibrated) {
+            RuntimeException error = m_backend.getCalibrationError();
+            if (error != null && !m_calibration.isDone()) {
+                m_calibration.completeExceptionally(error);
+            }
+            return;
+        }
+        if (!m_calibration.isDone()) {
+            m_calibration.complete(this);
+        }
+        synchronized (m_historyTimes) {
+            m_historyTimes[m_historyHead] = m_attitude.timestamp;
+            m_historyYaws[m_historyHead] = yaw;
+            m_historyRates[m_historyHead] = m_attitude.rate;
+            m_historyHead = (m_historyHead + 1) % k_historySize;
+            m_historySize = Math.min(m_historySize + 1, k_historySize);
+        }
+    }
+
+    /**
+     * Moves the continuous angle by the change in wrapped yaw and filters the rate, using only the new snapshot.
+     * The filter weight comes from the time between snapshots, so a late loop doesn't change how fast it responds.
+     */
+    private void updateContinuous() {
+        if (!m_hasSample) {
+            m_attitude.angle = m_attitude.yaw;
+            m_attitude.filteredRate = m_attitude.rate;
+        } else {
+            m_attitude.angle += Math.IEEEremainder(m_attitude.yaw - m_lastWrappedYaw, 360.0);
+            double dt = m_attitude.timestamp - m_lastSampleTime;
+            if (dt > 0) {
+                double alpha = m_rateTimeConstant > 0 ? dt / (m_rateTimeConstant + dt) : 1;
+                m_attitude.filteredRate += alpha * (m_attitude.rate - m_attitude.filteredRate);
+            }
+        }
+        m_lastWrappedYaw = m_attitude.yaw;
+        m_lastSampleTime = m_attitude.timestamp;
+        m_hasSample = true;
+    }
+
+    /**
+     * Gets the yaw at an earlier time, for lining up late sensor data such as vision targets with the robot heading.
+     * The two snapshots around the time are found with a binary search and linearly interpolated. The yaw is stored
+     * unwrapped, so this is the same as interpolating along the shortest arc between them.
+     * Times outside the history give the oldest or newest yaw.
+     * Safe to call from other threads, such as a NetworkTables listener.
+     * 
+     * @param timestamp the FPGA time in seconds, e.g. the time the image was taken.
+     * @return the yaw [-180, 180] at that time.
+     */
+    public double getYawAt(double timestamp) {
+        synchronized (m_historyTimes) {
+            if (m_historySize == 0) {
+                return m_attitude.yaw;
+            }
+            return Math.IEEEremainder(interpolateHistory(m_historyYaws, timestamp), 360.0);
+        }
+    }
+
+    /**
+     * Gets the yaw rate at an earlier time, see getYawAt().
+     * 
+     * @param timestamp the FPGA time in seconds.
+     * @return the rate in degrees per second at that time.
+     */
+    public double getRateAt(double timestamp) {
+        synchronized (m_historyTimes) {
+            if (m_historySize == 0) {
+                return m_attitude.rate;
+            }
+            return interpolateHistory(m_historyRates, timestamp);
+        }
+    }
+
+    /**
+     * Gets the snapshot of every gyro value. The returned instance is refreshed in place every loop.
+     * 
+     * @return the latest snapshot.
+     */
+    public Attitude getAttitude() {
+        return m_attitude;
+    }
+
+    /**
+     * Gets if the gyro has finished calibrating. Never blocks.
+     */
+    public boolean isCalibrated() {
+        return m_backend.isCalibrated();
+    }
+
+    /**
+     * Gets the exception that stopped the gyro from calibrating, such as the gyro not being found.
+     *
+     * @return the exception, or null if calibration hasn't failed.
+     */
+    public RuntimeException getCalibrationError() {
+        return m_backend.getCalibrationError();
+    }
+
+    /**
+     * Gets a future that completes with this gyro once it has finished calibrating.
+     * The future is completed by the first update() that sees calibration finished,
+     * or completed exceptionally by the first update() after calibration failed.
+     * 
+     * @return the calibration future.
+     */
+    public CompletableFuture<CT_Gyro> getCalibrationFuture() {
+        return m_calibration;
     }
 
     /**
      * Resets the yaw by setting it to 0.
+     * Does nothing on the ADXRS450 while it is calibrating, since calibration ends at 0.
      */
     public void resetYaw() {
-        if (m_gyroType == GyroType.PigeonImu) {
-            m_pigeon.setYaw(0);
-        } else {
-            m_gyro.reset();
+        m_backend.resetYaw();
+        // The old yaws would be interpolated against the new zero.
+        synchronized (m_historyTimes) {
+            m_historySize = 0;
         }
+        m_hasSample = false;
+        update();
     }
 
     /**
      * Gets the yaw.
      * 
-     * @return the yaw [0, 360].
+     * @return the yaw [-180, 180].
      */
     public double getYaw() {
-        if (m_gyroType == GyroType.PigeonImu) {
-            m_pigeon.getYawPitchRoll(m_yawPitchRoll);
-            return Math.IEEEremainder(m_yawPitchRoll[0], 360.0);
-        } else {
-            return Math.IEEEremainder(m_gyro.getAngle(), 360.0);
-        }
+        return m_attitude.yaw;
     }
 
     /**
      * PigeonIMU method. Gets the pitch.
      * 
-     * @return the pitch within [-90,+90] degrees.
-     * @throws Exception when this method is called with the ADXRS450 gyro created
+     * @return the pitch within [-90,+90] degrees, or NaN if the gyro doesn't measure pitch (ADXRS450).
      */
-    public double getPitch() throws Exception {
-        if (m_gyroType == GyroType.PigeonImu) {
-            m_pigeon.getYawPitchRoll(m_yawPitchRoll);
-            return m_yawPitchRoll[1];
-        } else {
-            throw new Exception("Used the getPitch() method on the ADXRS450 gyro.");
-        }
+    public double getPitch() {
+        return m_attitude.pitch;
     }
 
     /**
      * PigeonIMU method. Gets the roll.
      * 
-     * @return the roll within [-90,+90] degrees.
-     * @throws Exception when this method is called with the ADXRS450 gyro created
+     * @return the roll within [-90,+90] degrees, or NaN if the gyro doesn't measure roll (ADXRS450).
      */
-    public double getRoll() throws Exception {
-        if (m_gyroType == GyroType.PigeonImu) {
-            m_pigeon.getYawPitchRoll(m_yawPitchRoll);
-            return m_yawPitchRoll[2];
-        } else {
-            throw new Exception("Used the getRoll() method on the ADXRS450 gyro.");
+    public double getRoll() {
+        return m_attitude.roll;
+    }
+
+    /**
+     * Gets if the gyro measures pitch and roll.
+     */
+    public boolean hasAttitude() {
+        return m_hasAttitude;
+    }
+
+    /**
+     * Sets which signals the robot reads from the gyro. On the PigeonIMU this sets the CAN status frame periods,
+     * so the frames that are used arrive quickly and the rest stop taking up bus bandwidth.
+     * Defaults to FullAttitude.
+     * 
+     * @param profile the signals that are read.
+     */
+    public void setSignalProfile(SignalProfile profile) {
+        m_signalProfile = profile;
+        m_backend.setSignalProfile(profile);
+        if (profile != SignalProfile.RawAccel) {
+            m_attitude.accelX = Double.NaN;
+            m_attitude.accelY = Double.NaN;
+            m_attitude.accelZ = Double.NaN;
         }
     }
 
     /**
-     * PigeonIMU method.
+     * Gets how old the latest attitude data from the gyro is. On the PigeonIMU this is the time since a read
+     * last came back without an error. Phoenix reports an error once the yaw, pitch and roll frame stops arriving,
+     * so this stays within a loop or two while the frame is healthy, even with the robot sitting still.
+     * 
+     * @return the age in seconds, 0 for gyros read directly over SPI.
+     */
+    public double getFrameAge() {
+        return m_backend.getFrameAge();
+    }
+
+    /**
+     * Gets the share of the CAN bus used by the gyro's status frames, worked out from the configured frame periods.
+     * 
+     * @return the utilization from 0 to 1, 0 for gyros not on CAN.
+     */
+    public double getCANUtilization() {
+        return m_backend.getBusUtilization();
+    }
+
+    /**
+     * Gets which type of gyro is being used.
+     */
+    public GyroType getGyroType() {
+        return m_backend.getType();
+    }
+
+    /**
+     * Gets the yaw rate.
+     * 
+     * @return the rate in degrees per second.
+     */
+    public double getRate() {
+        return m_attitude.rate;
+    }
+
+    /**
+     * Gets the low pass filtered yaw rate, for controllers that use the rate as feedback.
+     * 
+     * @return the rate in degrees per second.
+     */
+    public double getFilteredRate() {
+        return m_attitude.filteredRate;
+    }
+
+    /**
+     * Sets how much the filtered rate is smoothed. Defaults to 0.06 seconds.
+     * 
+     * @param seconds the time constant of the filter, 0 turns the filter off.
+     */
+    public void setRateFilterTimeConstant(double seconds) {
+        m_rateTimeConstant = Math.max(seconds, 0);
+    }
+
+    /**
+     * Gets the continuous yaw, for controllers that turn more than once around or need to cross +-180 smoothly.
+     * 
+     * @return the yaw in degrees since the last reset, without wrapping.
+     */
+    public double getAngle() {
+        return m_attitude.angle;
+    }
+
+    /**
      * Returns the heading of the robot.
-     *
+     * This creates a new Rotation2d every call, use getHeadingRadians(), getHeadingCos() and getHeadingSin()
+     * in code that runs every loop.
+     * 
      * @return the robot's heading in degrees, from -180 to 180
      */
     public Rotation2d getHeading() {
-        return Rotation2d.fromDegrees(Math.IEEEremainder(getYaw(), 360.0d));
+        return Rotation2d.fromDegrees(getYaw());
+    }
+
+    /**
+     * Gets the heading of the robot without creating any objects.
+     * 
+     * @return the heading in degrees, from -180 to 180.
+     */
+    public double getHeadingDegrees() {
+        return getYaw();
+    }
+
+    /**
+     * Gets the heading of the robot without creating any objects.
+     * 
+     * @return the heading in radians, from -pi to pi.
+     */
+    public double getHeadingRadians() {
+        return m_headingRadians;
+    }
+
+    /**
+     * Gets the cosine of the heading, calculated once per snapshot.
+     */
+    public double getHeadingCos() {
+        return m_headingCos;
+    }
+
+    /**
+     * Gets the sine of the heading, calculated once per snapshot.
+     */
+    public double getHeadingSin() {
+        return m_headingSin;
+    }
+
+    /**
+     * Binary searches the history for the snapshots around the given time and interpolates between them.
+     * Has to be called while holding the history lock with at least one snapshot recorded.
+     */
+    private double interpolateHistory(double[] values, double timestamp) {
+        int oldest = (m_historyHead - m_historySize + k_historySize) % k_historySize;
+
+        if (timestamp <= m_historyTimes[oldest]) {
+            return values[oldest];
+        }
+        int newest = (m_historyHead - 1 + k_historySize) % k_historySize;
+        if (timestamp >= m_historyTimes[newest]) {
+            return values[newest];
+        }
+
+        // Finds the last snapshot at or before the time, counting from the oldest.
+        int low = 0;
+        int high = m_historySize - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (m_historyTimes[(oldest + mid) % k_historySize] <= timestamp) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        int before = (oldest + low) % k_historySize;
+        int after = (before + 1) % k_historySize;
+        double span = m_historyTimes[after] - m_historyTimes[before];
+        if (span <= 0) {
+            return values[before];
+        }
+        double fraction = (timestamp - m_historyTimes[before]) / span;
+        return values[before] + (values[after] - values[before]) * fraction;
+    }
+
+}
+
+/**
+ * ADXRS450 backend. Only measures yaw.
+ */
+final class ADXRS450Backend implements CT_GyroBackend {
+
+    private volatile ADXRS450_Gyro m_gyro;
+    private volatile RuntimeException m_calibrationError;
+
+    ADXRS450Backend(Port port) {
+        // The ADXRS450_Gyro constructor already calibrates, which is what takes so long.
+        Thread calibrationThread = new Thread(() -> {
+            try {
+                ADXRS450_Gyro gyro = new ADXRS450_Gyro(port);
+                // A missing gyro is only reported to the DriverStation, the constructor still returns.
+                if (!gyro.isConnected()) {
+                    gyro.close();
+                    m_calibrationError = new IllegalStateException("CT_Gyro could not find an ADXRS450 on SPI port " + port);
+                    return;
+                }
+                m_gyro = gyro;
+            } catch (RuntimeException e) {
+                m_calibrationError = e;
+            }
+        }, "CT_Gyro calibration");
+        calibrationThread.setDaemon(true);
+        calibrationThread.start();
+    }
+
+    @Override
+    public void read(double[] yawPitchRollRate) {
+        ADXRS450_Gyro gyro = m_gyro;
+        if (gyro != null) {
+            yawPitchRollRate[0] = gyro.getAngle();
+            yawPitchRollRate[3] = gyro.getRate();
+        } else {
+            yawPitchRollRate[0] = 0;
+            yawPitchRollRate[3] = 0;
+        }
+    }
+
+    /**
+     * Does nothing while calibrating, since calibration ends at 0.
+     */
+    @Override
+    public void resetYaw() {
+        ADXRS450_Gyro gyro = m_gyro;
+        if (gyro != null) {
+            gyro.reset();
+        }
+    }
+
+    @Override
+    public boolean hasAttitude() {
+        return false;
+    }
+
+    @Override
+    public boolean isCalibrated() {
+        return m_gyro != null;
+    }
+
+    @Override
+    public RuntimeException getCalibrationError() {
+        return m_calibrationError;
     }
 
+    @Override
+    public double getTimestamp() {
+        return Timer.getFPGATimestamp();
+    }
+
+    @Override
+    public CT_Gyro.GyroType getType() {
+        return CT_Gyro.GyroType.ADXRS450;
+    }
+}
+
+/**
+ * PigeonIMU backend. Measures yaw, pitch and roll.
+ */
+final class PigeonIMUBackend implements CT_GyroBackend {
+
+    /**
+     * The Pigeon can still report Ready right after being told to calibrate,
+     * so Ready is only trusted once it was seen calibrating or this much time has passed.
+     */
+    private static final double k_calibrationStartTime = 1.0;
+
+    /**
+     * Bits on the wire for one extended CAN frame with 8 data bytes, including a typical amount of bit stuffing.
+     */
+    private static final double k_bitsPerFrame = 150;
+    private static final double k_busBitsPerSecond = 1000000;
+    private static final int k_fastPeriodMs = 10;
+    private static final int k_ratePeriodMs = 20;
+    private static final int k_generalPeriodMs = 100;
+    private static final int k_slowestPeriodMs = 255;
+    /**
+     * How long the yaw can go without changing before the YawOnly rate counts as 0. Two yaw frames,
+     * since a frame can arrive just after a read.
+     */
+    private static final double k_stillTime = 2 * k_fastPeriodMs / 1000.0;
+
+    private final PigeonIMU m_pigeon;
+    private final double[] m_yawPitchRoll = new double[3];
+    private final double[] m_rawGyro = new double[3];
+    private final short[] m_rawAccel = new short[3];
+
+    private CT_Gyro.SignalProfile m_profile = CT_Gyro.SignalProfile.FullAttitude;
+    private final int[] m_framePeriods = new int[PigeonIMU_StatusFrame.values().length];
+    // When the yaw, pitch or roll last changed, only used to work out the rate in the YawOnly profile.
+    private double m_lastChangeTime;
+    // When a read last came back OK. Phoenix returns an error code instead once the frame stops arriving.
+    private double m_lastReceiveTime;
+    private double m_lastYaw = Double.NaN;
+    private double m_lastPitch;
+    private double m_lastRoll;
+
+    private final double m_calibrationStart;
+    private boolean m_sawCalibrating;
+    private boolean m_isCalibrated;
+
+    PigeonIMUBackend(int canID) {
+        m_pigeon = new PigeonIMU(canID);
+        m_pigeon.enterCalibrationMode(CalibrationMode.BootTareGyroAccel);
+        m_calibrationStart = Timer.getFPGATimestamp();
+    }
+
+    @Override
+    public void read(double[] yawPitchRollRate) {
+        if (!m_isCalibrated) {
+            checkCalibration();
+        }
+        double now = Timer.getFPGATimestamp();
+        ErrorCode error = m_pigeon.getYawPitchRoll(m_yawPitchRoll);
+
+        if (error == ErrorCode.OK) {
+            m_lastReceiveTime = now;
+        }
+
+        double previousYaw = m_lastYaw;
+        double previousChangeTime = m_lastChangeTime;
+        boolean hasChanged = error == ErrorCode.OK && (m_yawPitchRoll[0] != m_lastYaw
+            || m_yawPitchRoll[1] != m_lastPitch || m_yawPitchRoll[2] != m_lastRoll);
+        if (hasChanged) {
+            m_lastChangeTime = now;
+            m_lastYaw = m_yawPitchRoll[0];
+            m_lastPitch = m_yawPitchRoll[1];
+            m_lastRoll = m_yawPitchRoll[2];
+        }
+
+        yawPitchRollRate[0] = m_yawPitchRoll[0];
+        yawPitchRollRate[1] = m_yawPitchRoll[1];
+        yawPitchRollRate[2] = m_yawPitchRoll[2];
+
+        if (m_profile == CT_Gyro.SignalProfile.YawOnly) {
+            // The gyro frame is slowed down in this profile, so the rate comes from the yaw frames instead.
+            if (hasChanged && !Double.isNaN(previousYaw) && now > previousChangeTime) {
+                yawPitchRollRate[3] = (m_yawPitchRoll[0] - previousYaw) / (now - previousChangeTime);
+            } else if (now - m_lastChangeTime > k_stillTime) {
+                // The array is reused every loop, so the last rate would otherwise be kept once the robot stops turning.
+                yawPitchRollRate[3] = 0;
+            }
+        } else {
+            m_pigeon.getRawGyro(m_rawGyro);
+            yawPitchRollRate[3] = m_rawGyro[2];
+        }
+    }
+
+    @Override
+    public boolean readAcceleration(double[] xyz) {
+        if (m_pigeon.getBiasedAccelerometer(m_rawAccel) != ErrorCode.OK) {
+            return false;
+        }
+        // Q2.14 fixed point, 16384 is 1g.
+        xyz[0] = m_rawAccel[0] / 16384.0;
+        xyz[1] = m_rawAccel[1] / 16384.0;
+        xyz[2] = m_rawAccel[2] / 16384.0;
+        return true;
+    }
+
+    /**
+     * Sends the frames the profile needs quickly and everything else at the slowest period.
+     * The general frame keeps a medium period since the calibration state comes from it.
+     */
+    @Override
+    public void setSignalProfile(CT_Gyro.SignalProfile profile) {
+        m_profile = profile;
+
+        for (PigeonIMU_StatusFrame frame : PigeonIMU_StatusFrame.values()) {
+            int period;
+            switch (frame) {
+                case CondStatus_9_SixDeg_YPR:
+                    period = k_fastPeriodMs;
+                    break;
+                case CondStatus_1_General:
+                    period = k_generalPeriodMs;
+                    break;
+                case BiasedStatus_2_Gyro:
+                    period = profile == CT_Gyro.SignalProfile.YawOnly ? k_slowestPeriodMs : k_ratePeriodMs;
+                    break;
+                case BiasedStatus_6_Accel:
+                    period = profile == CT_Gyro.SignalProfile.RawAccel ? k_fastPeriodMs : k_slowestPeriodMs;
+                    break;
+                default:
+                    period = k_slowestPeriodMs;
+            }
+            // A timeout of 0 sends the setting without waiting for the Pigeon to answer.
+            m_pigeon.setStatusFramePeriod(frame, period, 0);
+            m_framePeriods[frame.ordinal()] = period;
+        }
+    }
+
+    @Override
+    public double getFrameAge() {
+        return m_lastReceiveTime == 0 ? Double.POSITIVE_INFINITY : Timer.getFPGATimestamp() - m_lastReceiveTime;
+    }
+
+    @Override
+    public double getBusUtilization() {
+        double bitsPerSecond = 0;
+        for (int period : m_framePeriods) {
+            if (period > 0) {
+                bitsPerSecond += k_bitsPerFrame * 1000.0 / period;
+            }
+        }
+        return bitsPerSecond / k_busBitsPerSecond;
+    }
+
+    @Override
+    public void resetYaw() {
+        m_pigeon.setYaw(0);
+    }
+
+    @Override
+    public boolean hasAttitude() {
+        return true;
+    }
+
+    @Override
+    public boolean isCalibrated() {
+        return m_isCalibrated;
+    }
+
+    @Override
+    public double getTimestamp() {
+        return Timer.getFPGATimestamp();
+    }
+
+    @Override
+    public CT_Gyro.GyroType getType() {
+        return CT_Gyro.GyroType.PigeonImu;
+    }
+
+    /**
+     * Marks calibration as done once the Pigeon reports it is ready again.
+     */
+    private void checkCalibration() {
+        PigeonState state = m_pigeon.getState();
+        if (state == PigeonState.Ready) {
+            if (m_sawCalibrating || Timer.getFPGATimestamp() - m_calibrationStart >= k_calibrationStartTime) {
+                m_isCalibrated = true;
+            }
+        } else if (state == PigeonState.Initializing || state == PigeonState.UserCalibration) {
+            m_sawCalibrating = true;
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,90 @@
+package frc.robot.Toolkit;
+
+import frc.robot.Toolkit.CT_Gyro.GyroType;
+import frc.robot.Toolkit.CT_Gyro.SignalProfile;
+
+/**
+ * The hardware, or simulation, behind a CT_Gyro. The backend is picked once when the CT_Gyro is created,
+ * so the gyro never has to check which type it is on every read.
+ */
+public interface CT_GyroBackend {
+
+    /**
+     * Reads every value the backend has in one go.
+     *
+     * @param yawPitchRollRate filled with the unwrapped yaw, pitch and roll in degrees, then the yaw rate in degrees per second.
+     * Pitch and roll are left alone if hasAttitude() is false.
+     */
+    void read(double[] yawPitchRollRate);
+
+    /**
+     * Sets the yaw to 0.
+     */
+    void resetYaw();
+
+    /**
+     * Gets if the backend measures pitch and roll.
+     */
+    boolean hasAttitude();
+
+    /**
+     * Gets if the backend has finished calibrating. Must never block.
+     */
+    boolean isCalibrated();
+
+    /**
+     * Gets the exception that stopped the backend from calibrating. Must never block.
+     *
+     * @return the exception, or null if calibration hasn't failed.
+     */
+    default RuntimeException getCalibrationError() {
+        return null;
+    }
+
+    /**
+     * Gets the current time samples are stamped with. On a robot this is the FPGA time,
+     * a simulation can run its own clock faster than real time.
+     *
+     * @return the time in seconds.
+     */
+    double getTimestamp();
+
+    /**
+     * Gets which type of gyro this backend is.
+     */
+    GyroType getType();
+
+    /**
+     * Reads the acceleration. Only called when the RawAccel signal profile is used.
+     *
+     * @param xyz filled with the acceleration on each axis in g.
+     * @return false if the backend doesn't measure acceleration.
+     */
+    default boolean readAcceleration(double[] xyz) {
+        return false;
+    }
+
+    /**
+     * Tells the backend which signals are actually read, so it can stop sending the rest.
+     * Only does something on backends with a configurable bus, such as the PigeonIMU on CAN.
+     */
+    default void setSignalProfile(SignalProfile profile) {}
+
+    /**
+     * Gets how old the latest attitude data is.
+     *
+     * @return the age in seconds, 0 for backends that read the sensor directly.
+     */
+    default double getFrameAge() {
+        return 0;
+    }
+
+    /**
+     * Gets the share of the bus taken up by this backend's data.
+     *
+     * @return the utilization from 0 to 1, 0 for backends that aren't on a shared bus.
+     */
+    default double getBusUtilization() {
+        return 0;
+    }
+}
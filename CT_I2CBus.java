@@ -0,0 +1,436 @@
+package frc.robot.Toolkit;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+
+import edu.wpi.first.wpilibj.I2C.Port;
+
+/**
+ * Runs every toolkit I2C transaction on a port from one dedicated thread, so devices sharing the bus
+ * never interleave and the robot loop never waits on a transaction it didn't ask for.
+ *
+ * Devices register once and then either schedule periodic reads, which run on a fixed schedule and
+ * are run back to back when they come due together, or submit one off transactions.
+ * When several transactions are ready, the highest priority runs first, then the one that has waited longest.
+ *
+ * Use:
+ * CT_I2CBus bus = CT_I2CBus.get(Port.kOnboard);
+ * CT_I2CBus.Device lidar = bus.register("LIDAR", CT_I2CBus.k_normalPriority);
+ * bus.addPeriodic(lidar, 0.01, this::poll);
+ */
+public class CT_I2CBus {
+
+    public static final int k_lowPriority = -10;
+    public static final int k_normalPriority = 0;
+    public static final int k_highPriority = 10;
+
+    private static final EnumMap<Port, CT_I2CBus> k_buses = new EnumMap<>(Port.class);
+
+    private final Port m_port;
+    private final Thread m_thread;
+    // Periodic reads are lined up against this, so reads with the same period come due together.
+    private final long m_scheduleEpoch = System.nanoTime();
+
+    // Everything below is guarded by m_lock.
+    private final Object m_lock = new Object();
+    private final ArrayList<Device> m_devices = new ArrayList<>();
+    private final ArrayList<PeriodicRead> m_periodicReads = new ArrayList<>();
+    private final PriorityQueue<Request<?>> m_requests = new PriorityQueue<>((a, b) -> {
+        if (a.device.m_priority != b.device.m_priority) {
+            return Integer.compare(b.device.m_priority, a.device.m_priority);
+        }
+        return Long.compare(a.readyTime, b.readyTime);
+    });
+
+    private volatile long m_busyNanos;
+    private volatile long m_statisticsStart = System.nanoTime();
+
+    /**
+     * A device on the bus. Keeps the timing of every transaction run for it.
+     * Latency is measured from when a transaction was ready to when it finished, so it includes time spent waiting for the bus.
+     */
+    public final class Device {
+        private final String m_name;
+        private volatile int m_priority;
+
+        private volatile long m_transactionCount;
+        private volatile long m_totalLatencyNanos;
+        private volatile long m_maxLatencyNanos;
+        private volatile long m_lastLatencyNanos;
+        private volatile long m_totalExecutionNanos;
+
+        private Device(String name, int priority) {
+            m_name = name;
+            m_priority = priority;
+        }
+
+        public String getName() {
+            return m_name;
+        }
+
+        public int getPriority() {
+            return m_priority;
+        }
+
+        /**
+         * Sets the priority used when this device's transactions are ready at the same time as another device's.
+         * Transactions already queued for this device move to their new place in the queue.
+         */
+        public void setPriority(int priority) {
+            synchronized (m_lock) {
+                if (priority == m_priority) {
+                    return;
+                }
+                // The queue orders by the live priority, so queued requests are taken out before it changes and put back after.
+                ArrayList<Request<?>> queued = new ArrayList<>();
+                for (Request<?> request : m_requests) {
+                    if (request.device == this) {
+                        queued.add(request);
+                    }
+                }
+                m_requests.removeAll(queued);
+                m_priority = priority;
+                m_requests.addAll(queued);
+            }
+        }
+
+        public long getTransactionCount() {
+            return m_transactionCount;
+        }
+
+        /**
+         * Gets the average time from a transaction being ready to it finishing.
+         *
+         * @return the latency in seconds.
+         */
+        public double getAverageLatency() {
+            long count = m_transactionCount;
+            return count == 0 ? 0 : m_totalLatencyNanos / 1e9 / count;
+        }
+
+        /**
+         * Gets the longest time from a transaction being ready to it finishing.
+         *
+         * @return the latency in seconds.
+         */
+        public double getMaxLatency() {
+            return m_maxLatencyNanos / 1e9;
+        }
+
+        /**
+         * Gets the latency of the latest transaction.
+         *
+         * @return the latency in seconds.
+         */
+        public double getLastLatency() {
+            return m_lastLatencyNanos / 1e9;
+        }
+
+        /**
+         * Gets the average time a transaction spent on the bus, without waiting.
+         *
+         * @return the time in seconds.
+         */
+        public double getAverageExecutionTime() {
+            long count = m_transactionCount;
+            return count == 0 ? 0 : m_totalExecutionNanos / 1e9 / count;
+        }
+
+        // Only called on the bus thread, so the counters have a single writer.
+        private void record(long readyTime, long startTime, long endTime) {
+            long latency = endTime - readyTime;
+            m_transactionCount++;
+            m_totalLatencyNanos += latency;
+            m_maxLatencyNanos = Math.max(m_maxLatencyNanos, latency);
+            m_lastLatencyNanos = latency;
+            m_totalExecutionNanos += endTime - startTime;
+            m_busyNanos += endTime - startTime;
+        }
+
+        private void resetStatistics() {
+            m_transactionCount = 0;
+            m_totalLatencyNanos = 0;
+            m_maxLatencyNanos = 0;
+            m_lastLatencyNanos = 0;
+            m_totalExecutionNanos = 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d transactions, %.2fms average latency, %.2fms max latency",
+                m_name, getTransactionCount(), getAverageLatency() * 1e3, getMaxLatency() * 1e3);
+        }
+    }
+
+    /**
+     * A read scheduled with addPeriodic(). Runs on a fixed schedule, so a late run doesn't push the next one back.
+     */
+    public final class PeriodicRead {
+        private final Device m_device;
+        private final Runnable m_read;
+        private final long m_periodNanos;
+        private long m_nextTime;
+        private boolean m_isScheduled = true;
+
+        private PeriodicRead(Device device, Runnable read, long periodNanos, long nextTime) {
+            m_device = device;
+            m_read = read;
+            m_periodNanos = periodNanos;
+            m_nextTime = nextTime;
+        }
+
+        /**
+         * Stops the read from running again. A run already in progress finishes.
+         */
+        public void cancel() {
+            synchronized (m_lock) {
+                m_isScheduled = false;
+                m_periodicReads.remove(this);
+            }
+        }
+
+        public boolean isScheduled() {
+            synchronized (m_lock) {
+                return m_isScheduled;
+            }
+        }
+    }
+
+    private static final class Request<T> {
+        final Device device;
+        final Supplier<T> transaction;
+        final long readyTime;
+        final CompletableFuture<T> result = new CompletableFuture<>();
+
+        Request(Device device, Supplier<T> transaction, long readyTime) {
+            this.device = device;
+            this.transaction = transaction;
+            this.readyTime = readyTime;
+        }
+
+        void run() {
+            try {
+                result.complete(transaction.get());
+            } catch (Throwable e) {
+                // Errors end up in the future too, so one bad transaction doesn't stop the bus thread.
+                result.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Gets the bus for a port, starting its thread the first time.
+     *
+     * @param port the I2C port. Either kMXP or kOnBoard.
+     */
+    public static CT_I2CBus get(Port port) {
+        synchronized (k_buses) {
+            CT_I2CBus bus = k_buses.get(port);
+            if (bus == null) {
+                bus = new CT_I2CBus(port);
+                k_buses.put(port, bus);
+            }
+            return bus;
+        }
+    }
+
+    private CT_I2CBus(Port port) {
+        m_port = port;
+        m_thread = new Thread(this::run, "CT_I2CBus " + port.name());
+        m_thread.setDaemon(true);
+        m_thread.start();
+    }
+
+    public Port getPort() {
+        return m_port;
+    }
+
+    /**
+     * Adds a device to the bus.
+     *
+     * @param name the name shown in the statistics.
+     * @param priority which device goes first when transactions are ready together, higher goes first.
+     */
+    public Device register(String name, int priority) {
+        synchronized (m_lock) {
+            Device device = new Device(name, priority);
+            m_devices.add(device);
+            return device;
+        }
+    }
+
+    /**
+     * Gets every device registered on the bus.
+     */
+    public Device[] getDevices() {
+        synchronized (m_lock) {
+            return m_devices.toArray(new Device[0]);
+        }
+    }
+
+    /**
+     * Runs a read on the bus thread every period. Reads with the same period line up on the same schedule,
+     * so they run back to back in one wake up of the bus thread.
+     *
+     * @param device the device the read is for.
+     * @param period time between reads in seconds.
+     * @param read the read, which should only do its transactions and return.
+     * @return a handle that can cancel the read.
+     */
+    public PeriodicRead addPeriodic(Device device, double period, Runnable read) {
+        long periodNanos = (long) (period * 1e9);
+        if (periodNanos <= 0) {
+            throw new IllegalArgumentException("CT_I2CBus period must be positive");
+        }
+        synchronized (m_lock) {
+            long now = System.nanoTime() - m_scheduleEpoch;
+            PeriodicRead periodicRead = new PeriodicRead(device, read, periodNanos, m_scheduleEpoch + (now / periodNanos + 1) * periodNanos);
+            m_periodicReads.add(periodicRead);
+            m_lock.notifyAll();
+            return periodicRead;
+        }
+    }
+
+    /**
+     * Queues a transaction to run on the bus thread.
+     *
+     * @param device the device the transaction is for.
+     * @param transaction the transaction, which should only talk to the device and return.
+     * @return a future that completes with the result of the transaction.
+     */
+    public <T> CompletableFuture<T> submit(Device device, Supplier<T> transaction) {
+        Request<T> request = new Request<>(device, transaction, System.nanoTime());
+        synchronized (m_lock) {
+            m_requests.add(request);
+            m_lock.notifyAll();
+        }
+        return request.result;
+    }
+
+    /**
+     * Runs a transaction on the bus thread and waits for it. Called from the bus thread itself, such as from
+     * a periodic read, the transaction runs right away and its time is counted as part of the read that called it.
+     * Anything the transaction throws is rethrown as is.
+     *
+     * @param device the device the transaction is for.
+     * @param transaction the transaction, which should only talk to the device and return.
+     * @return the result of the transaction.
+     */
+    public <T> T execute(Device device, Supplier<T> transaction) {
+        if (Thread.currentThread() == m_thread) {
+            // run() records the read or request this is part of, recording it here too would count it twice.
+            return transaction.get();
+        }
+        try {
+            return submit(device, transaction).join();
+        } catch (CompletionException e) {
+            // Throw what the transaction threw, so callers see the same exceptions as a direct call.
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Gets how much of the time the bus thread has spent running transactions since the statistics were reset.
+     *
+     * @return the utilization from 0 to 1.
+     */
+    public double getUtilization() {
+        long elapsed = System.nanoTime() - m_statisticsStart;
+        return elapsed <= 0 ? 0 : Math.min((double) m_busyNanos / elapsed, 1);
+    }
+
+    /**
+     * Sets the bus and device statistics back to 0.
+     */
+    public void resetStatistics() {
+        synchronized (m_lock) {
+            for (Device device : m_devices) {
+                device.resetStatistics();
+            }
+            m_busyNanos = 0;
+            m_statisticsStart = System.nanoTime();
+        }
+    }
+
+    private void run() {
+        while (true) {
+            Request<?> request = null;
+            PeriodicRead periodicRead = null;
+            long readyTime;
+
+            synchronized (m_lock) {
+                while (true) {
+                    long now = System.nanoTime();
+                    PeriodicRead due = null;
+                    long nextTime = Long.MAX_VALUE;
+                    for (PeriodicRead read : m_periodicReads) {
+                        if (read.m_nextTime <= now && (due == null || isBefore(read.m_device, read.m_nextTime, due.m_device, due.m_nextTime))) {
+                            due = read;
+                        }
+                        nextTime = Math.min(nextTime, read.m_nextTime);
+                    }
+
+                    Request<?> queued = m_requests.peek();
+                    if (queued != null && (due == null || isBefore(queued.device, queued.readyTime, due.m_device, due.m_nextTime))) {
+                        request = m_requests.poll();
+                        readyTime = request.readyTime;
+                        break;
+                    }
+                    if (due != null) {
+                        periodicRead = due;
+                        readyTime = due.m_nextTime;
+                        // Skip any runs that were missed instead of running them back to back.
+                        long missed = (now - due.m_nextTime) / due.m_periodNanos;
+                        due.m_nextTime += (missed + 1) * due.m_periodNanos;
+                        break;
+                    }
+
+                    try {
+                        if (nextTime == Long.MAX_VALUE) {
+                            m_lock.wait();
+                        } else {
+                            long waitNanos = nextTime - now;
+                            m_lock.wait(waitNanos / 1000000, (int) (waitNanos % 1000000));
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+
+            long start = System.nanoTime();
+            Device device;
+            if (request != null) {
+                device = request.device;
+                request.run();
+            } else {
+                device = periodicRead.m_device;
+                try {
+                    periodicRead.m_read.run();
+                } catch (Throwable e) {
+                    // Reported instead of thrown, the thread serves every device on the bus.
+                    e.printStackTrace();
+                }
+            }
+            device.record(readyTime, start, System.nanoTime());
+        }
+    }
+
+    private static boolean isBefore(Device device, long readyTime, Device otherDevice, long otherReadyTime) {
+        if (device.m_priority != otherDevice.m_priority) {
+            return device.m_priority > otherDevice.m_priority;
+        }
+        return readyTime < otherReadyTime;
+    }
+}
\ No newline at end of file
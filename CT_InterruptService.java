@@ -0,0 +1,433 @@
+package frc.robot.Toolkit;
+
+import edu.wpi.first.wpilibj.DigitalSource;
+import edu.wpi.first.wpilibj.Notifier;
+import edu.wpi.first.wpilibj.SynchronousInterrupt;
+import edu.wpi.first.wpilibj.SynchronousInterrupt.WaitResult;
+import edu.wpi.first.wpilibj.Timer;
+
+/**
+ * Handles the interrupts of every CT_DigitalInput on a small fixed pool of waiter threads, instead of a thread per interrupt.
+ * Each interrupt is given to the waiter with the fewest, and a waiter sleeps in SynchronousInterrupt.waitForInterrupt()
+ * on its interrupts in turn. A waiter with one interrupt waits on it until an edge, one with more waits on each for
+ * a short slice, so an edge on another interrupt is dispatched within a few slices. The FPGA latches and stamps
+ * every edge, so no edge is lost while its waiter is busy with another interrupt, and handlers get the time
+ * the edge happened, not the time it was handled.
+ *
+ * Sources that count edges in hardware, such as a Counter, only need to be looked at now and then,
+ * so those are checked by one Notifier, each at its own period. The Notifier is set for the next check that is due,
+ * so it only wakes up as often as the checks need.
+ */
+public final class CT_InterruptService {
+
+    /**
+     * Amount of waiter threads. The roboRIO has two cores, and a handler on one waiter doesn't hold up the other.
+     */
+    private static final int k_waiterCount = 2;
+    /**
+     * How long a waiter with one interrupt sleeps before checking for changes. Cancelling or registering also wakes it.
+     */
+    private static final double k_waitTimeout = 1.0;
+    /**
+     * How long a waiter with several interrupts waits on each before moving to the next.
+     */
+    private static final double k_sliceTimeout = 0.002;
+    /**
+     * How often cancel() wakes the waiter again, in case the first wake up came before the waiter started waiting.
+     */
+    private static final long k_wakeRetryMillis = 10;
+
+    private static final CT_InterruptService k_instance = new CT_InterruptService();
+
+    private final Waiter[] m_waiters = new Waiter[k_waiterCount];
+    private final Notifier m_notifier = new Notifier(this::poll);
+    // Copied on write so registering never waits on the poll.
+    private volatile Registration[] m_polls = new Registration[0];
+    // Held while polling, so a poll is never running after its registration is cancelled.
+    private final Object m_pollLock = new Object();
+
+    private final Object m_statisticsLock = new Object();
+    private volatile long m_dispatchCount;
+    private volatile double m_totalLatency;
+    private volatile double m_maxLatency;
+
+    /**
+     * Called for every edge, on the waiter thread the interrupt was given to. Should return quickly, other interrupts
+     * on that waiter aren't dispatched while it runs, and two edges in the same direction are then seen as one.
+     */
+    @FunctionalInterface
+    public interface EdgeHandler {
+        /**
+         * @param risingEdge true for a rising edge, false for a falling edge.
+         * @param timestamp the FPGA time in seconds the edge happened, stamped by the hardware.
+         */
+        void onEdge(boolean risingEdge, double timestamp);
+    }
+
+    /**
+     * An interrupt or poll being watched. Cancel it to stop the handler and free the interrupt.
+     */
+    public final class Registration {
+        private final SynchronousInterrupt m_interrupt;
+        private final Waiter m_waiter;
+        private final Runnable m_poll;
+        private final double m_pollPeriod;
+        // When the poll runs next, in FPGA seconds. Only changed by the poll thread after registering.
+        private volatile double m_nextPollTime;
+        private final EdgeHandler m_handler;
+        private volatile boolean m_isActive = true;
+        // Set when the handler cancels its own registration, the waiter then closes the interrupt once the handler returns.
+        private boolean m_isClosedByWaiter;
+
+        private Registration(DigitalSource source, boolean rising, boolean falling, EdgeHandler handler, Waiter waiter) {
+            m_interrupt = new SynchronousInterrupt(source);
+            m_interrupt.setInterruptEdges(rising, falling);
+            m_waiter = waiter;
+            m_poll = null;
+            m_pollPeriod = 0;
+            m_handler = handler;
+        }
+
+        private Registration(Runnable poll, double period) {
+            m_interrupt = null;
+            m_waiter = null;
+            m_poll = poll;
+            m_pollPeriod = period;
+            m_nextPollTime = Timer.getFPGATimestamp() + period;
+            m_handler = null;
+        }
+
+        /**
+         * Stops the handler or poll from being called and frees the interrupt. Once this returns the handler or poll
+         * is no longer running, unless this was called from inside it. Safe to call more than once.
+         */
+        public void cancel() {
+            if (m_interrupt != null) {
+                m_waiter.cancel(this);
+                return;
+            }
+            if (!unregisterPoll(this)) {
+                return;
+            }
+            // Waits out a poll that is running right now, the next one won't see this registration.
+            synchronized (m_pollLock) {}
+        }
+
+        public boolean isActive() {
+            return m_isActive;
+        }
+
+        private void runPoll() {
+            try {
+                m_poll.run();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private void dispatch(WaitResult result) {
+            switch (result) {
+                case kRisingEdge:
+                    dispatch(true, m_interrupt.getRisingTimestamp());
+                    break;
+                case kFallingEdge:
+                    dispatch(false, m_interrupt.getFallingTimestamp());
+                    break;
+                case kBoth:
+                    double rising = m_interrupt.getRisingTimestamp();
+                    double falling = m_interrupt.getFallingTimestamp();
+                    if (falling < rising) {
+                        dispatch(false, falling);
+                        dispatch(true, rising);
+                    } else {
+                        dispatch(true, rising);
+                        dispatch(false, falling);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void dispatch(boolean risingEdge, double timestamp) {
+            if (!m_isActive) {
+                return;
+            }
+            try {
+                m_handler.onEdge(risingEdge, timestamp);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+            recordLatency(Timer.getFPGATimestamp() - timestamp);
+        }
+    }
+
+    /**
+     * A thread that waits on its interrupts in turn. Everything below is guarded by the waiter itself.
+     */
+    private final class Waiter {
+        private final Thread m_thread;
+        private Registration[] m_registrations = new Registration[0];
+        // The registration being waited on or dispatched, it isn't closed until the waiter is done with it.
+        private Registration m_current;
+        private int m_next;
+
+        private Waiter(int index) {
+            m_thread = new Thread(this::run, "CT_InterruptService " + index);
+            m_thread.setDaemon(true);
+        }
+
+        private synchronized int getCount() {
+            return m_registrations.length;
+        }
+
+        private synchronized void add(Registration registration) {
+            m_registrations = append(m_registrations, registration);
+            if (!m_thread.isAlive()) {
+                m_thread.start();
+            }
+            // Moves a waiter that was sleeping on a single interrupt on to sharing its time.
+            if (m_current != null) {
+                m_current.m_interrupt.wakeupWaitingInterrupt();
+            }
+            notifyAll();
+        }
+
+        private void cancel(Registration registration) {
+            synchronized (this) {
+                if (!registration.m_isActive) {
+                    return;
+                }
+                registration.m_isActive = false;
+                m_registrations = remove(m_registrations, registration);
+
+                if (Thread.currentThread() == m_thread && m_current == registration) {
+                    registration.m_isClosedByWaiter = true;
+                    return;
+                }
+                boolean interrupted = false;
+                while (m_current == registration) {
+                    registration.m_interrupt.wakeupWaitingInterrupt();
+                    try {
+                        wait(k_wakeRetryMillis);
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            registration.m_interrupt.close();
+        }
+
+        private void run() {
+            while (true) {
+                Registration registration;
+                double timeout;
+                synchronized (this) {
+                    while (m_registrations.length == 0) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    m_next %= m_registrations.length;
+                    registration = m_registrations[m_next++];
+                    timeout = m_registrations.length == 1 ? k_waitTimeout : k_sliceTimeout;
+                    m_current = registration;
+                }
+
+                // The interrupt is created by the registration, so everything it has latched happened after registering.
+                WaitResult result = registration.m_interrupt.waitForInterrupt(timeout, false);
+                registration.dispatch(result);
+
+                synchronized (this) {
+                    m_current = null;
+                    notifyAll();
+                }
+                if (registration.m_isClosedByWaiter) {
+                    registration.m_interrupt.close();
+                }
+            }
+        }
+    }
+
+    private CT_InterruptService() {
+        for (int i = 0; i < k_waiterCount; i++) {
+            m_waiters[i] = new Waiter(i);
+        }
+        m_notifier.setName("CT_InterruptService");
+    }
+
+    public static CT_InterruptService getInstance() {
+        return k_instance;
+    }
+
+    /**
+     * Starts watching a digital source for edges, on the waiter with the fewest interrupts.
+     *
+     * @param source the digital input to watch.
+     * @param risingEdge if rising edges call the handler.
+     * @param fallingEdge if falling edges call the handler.
+     * @param handler called on the interrupt's waiter thread for every edge.
+     * @return the registration, used to cancel it.
+     */
+    public synchronized Registration register(DigitalSource source, boolean risingEdge, boolean fallingEdge, EdgeHandler handler) {
+        Waiter waiter = m_waiters[0];
+        for (Waiter other : m_waiters) {
+            if (other.getCount() < waiter.getCount()) {
+                waiter = other;
+            }
+        }
+        Registration registration = new Registration(source, risingEdge, fallingEdge, handler, waiter);
+        waiter.add(registration);
+        return registration;
+    }
+
+    /**
+     * Runs a check on the poll thread every period, for sources that count edges in hardware
+     * and only need to be looked at, such as a Counter. A late check doesn't push the next one back.
+     *
+     * @param poll the check, which should return quickly.
+     * @param period the time between checks in seconds.
+     * @return the registration, used to cancel it.
+     */
+    public synchronized Registration registerPoll(Runnable poll, double period) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("CT_InterruptService poll period must be positive");
+        }
+        Registration registration = new Registration(poll, period);
+        m_polls = append(m_polls, registration);
+        schedulePoll();
+        return registration;
+    }
+
+    private synchronized boolean unregisterPoll(Registration registration) {
+        if (!registration.m_isActive) {
+            return false;
+        }
+        registration.m_isActive = false;
+
+        m_polls = remove(m_polls, registration);
+        schedulePoll();
+        return true;
+    }
+
+    /**
+     * Sets the Notifier for the next check that is due, or stops it if nothing is polled.
+     */
+    private synchronized void schedulePoll() {
+        if (m_polls.length == 0) {
+            m_notifier.stop();
+            return;
+        }
+        double next = Double.POSITIVE_INFINITY;
+        for (Registration registration : m_polls) {
+            next = Math.min(next, registration.m_nextPollTime);
+        }
+        m_notifier.startSingle(Math.max(next - Timer.getFPGATimestamp(), 0));
+    }
+
+    /**
+     * Gets the amount of interrupts and polls being watched.
+     */
+    public int getRegistrationCount() {
+        int count = m_polls.length;
+        for (Waiter waiter : m_waiters) {
+            count += waiter.getCount();
+        }
+        return count;
+    }
+
+    /**
+     * Gets the amount of threads waiting on interrupts, which never goes above the size of the pool.
+     */
+    public int getWaiterThreadCount() {
+        int count = 0;
+        for (Waiter waiter : m_waiters) {
+            if (waiter.m_thread.isAlive()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Gets the amount of edges dispatched since the statistics were reset.
+     */
+    public long getDispatchCount() {
+        return m_dispatchCount;
+    }
+
+    /**
+     * Gets the average time from an edge happening to its handler finishing.
+     *
+     * @return the latency in seconds.
+     */
+    public double getAverageLatency() {
+        synchronized (m_statisticsLock) {
+            return m_dispatchCount == 0 ? 0 : m_totalLatency / m_dispatchCount;
+        }
+    }
+
+    /**
+     * Gets the longest time from an edge happening to its handler finishing.
+     *
+     * @return the latency in seconds.
+     */
+    public double getMaxLatency() {
+        return m_maxLatency;
+    }
+
+    public void resetStatistics() {
+        synchronized (m_statisticsLock) {
+            m_dispatchCount = 0;
+            m_totalLatency = 0;
+            m_maxLatency = 0;
+        }
+    }
+
+    private void poll() {
+        synchronized (m_pollLock) {
+            double now = Timer.getFPGATimestamp();
+            for (Registration registration : m_polls) {
+                if (registration.m_isActive && registration.m_nextPollTime <= now) {
+                    registration.runPoll();
+                    // Skip any checks that were missed instead of running them back to back.
+                    long missed = (long) ((now - registration.m_nextPollTime) / registration.m_pollPeriod);
+                    registration.m_nextPollTime += (missed + 1) * registration.m_pollPeriod;
+                }
+            }
+        }
+        schedulePoll();
+    }
+
+    // Every waiter records here, so the statistics are kept under a lock.
+    private void recordLatency(double latency) {
+        synchronized (m_statisticsLock) {
+            m_dispatchCount++;
+            m_totalLatency += latency;
+            m_maxLatency = Math.max(m_maxLatency, latency);
+        }
+    }
+
+    private static Registration[] append(Registration[] registrations, Registration registration) {
+        Registration[] appended = new Registration[registrations.length + 1];
+        System.arraycopy(registrations, 0, appended, 0, registrations.length);
+        appended[registrations.length] = registration;
+        return appended;
+    }
+
+    private static Registration[] remove(Registration[] registrations, Registration registration) {
+        Registration[] remaining = new Registration[registrations.length - 1];
+        int count = 0;
+        for (Registration other : registrations) {
+            if (other != registration) {
+                remaining[count++] = other;
+            }
+        }
+        return remaining;
+    }
+}
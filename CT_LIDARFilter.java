@@ -0,0 +1,201 @@
+package frc.robot.Toolkit;
+
+/**
+ * Smooths the distance stream of a CT_LIDARSensor. Each sample goes through three stages:
+ * a rate of change gate that throws out spikes no real target could make, a sliding window median,
+ * and an exponential moving average of the median.
+ *
+ * The median is kept in a Fenwick tree over every possible distance in cm, so adding and removing a sample
+ * and finding the median are all O(log n) with nothing allocated. update() is called on the sensor's
+ * sampling thread, and the filtered values can be read from any thread without a lock.
+ */
+public class CT_LIDARFilter {
+
+    /**
+     * Largest window the median can use.
+     */
+    public static final int k_maxWindowSize = 64;
+
+    /**
+     * One bucket per cm. The LIDAR-Lite reads up to 40m, farther distances are clamped to the last bucket.
+     */
+    private static final int k_bucketCount = 4096;
+
+    /**
+     * After this many samples in a row are gated, the target is taken to have really moved and the next one is accepted.
+     */
+    private static final int k_maxConsecutiveRejects = 3;
+
+    private int m_windowSize = 5;
+    private double m_maxRate = Double.POSITIVE_INFINITY;
+    private double m_timeConstant;
+
+    // Fenwick tree of how many window samples are at each distance, 1 based.
+    private final int[] m_tree = new int[k_bucketCount + 1];
+    private final int[] m_window = new int[k_maxWindowSize];
+    private int m_windowIndex;
+    private int m_windowFill;
+
+    private double m_lastAccepted;
+    private double m_lastAcceptedTime;
+    private int m_consecutiveRejects;
+    private boolean m_hasSample;
+
+    private volatile double m_median;
+    private volatile double m_filtered;
+    private volatile double m_timestamp;
+    private volatile long m_rejectedCount;
+
+    /**
+     * Sets the amount of samples the median looks at. Resets the filter.
+     *
+     * @param windowSize amount of samples, from 1 to k_maxWindowSize. 1 turns the median off.
+     */
+    public synchronized CT_LIDARFilter setWindowSize(int windowSize) {
+        m_windowSize = Math.min(Math.max(windowSize, 1), k_maxWindowSize);
+        reset();
+        return this;
+    }
+
+    /**
+     * Sets the fastest the distance can change before a sample is thrown out as a spike.
+     *
+     * @param cmPerSecond the largest rate of change, infinity turns the gate off.
+     */
+    public synchronized CT_LIDARFilter setMaxRate(double cmPerSecond) {
+        m_maxRate = cmPerSecond;
+        return this;
+    }
+
+    /**
+     * Sets how much the median is smoothed.
+     *
+     * @param seconds time constant of the moving average, 0 turns it off.
+     */
+    public synchronized CT_LIDARFilter setTimeConstant(double seconds) {
+        m_timeConstant = Math.max(seconds, 0);
+        return this;
+    }
+
+    /**
+     * Clears every sample, the next sample starts the filter over.
+     */
+    public synchronized void reset() {
+        for (int i = 0; i < m_windowFill; i++) {
+            addToTree(m_window[i], -1);
+        }
+        m_windowIndex = 0;
+        m_windowFill = 0;
+        m_consecutiveRejects = 0;
+        m_hasSample = false;
+    }
+
+    /**
+     * Adds a sample to the filter.
+     *
+     * @param distanceCM the measured distance.
+     * @param timestamp FPGA time in seconds the sample was taken.
+     * @return false if the sample was thrown out by the rate gate.
+     */
+    public synchronized boolean update(int distanceCM, double timestamp) {
+        if (m_hasSample) {
+            double dt = timestamp - m_lastAcceptedTime;
+            boolean isSpike = Math.abs(distanceCM - m_lastAccepted) > m_maxRate * Math.max(dt, 0);
+            if (isSpike && m_consecutiveRejects < k_maxConsecutiveRejects) {
+                m_consecutiveRejects++;
+                m_rejectedCount++;
+                return false;
+            }
+        }
+        m_consecutiveRejects = 0;
+        m_lastAccepted = distanceCM;
+        m_lastAcceptedTime = timestamp;
+
+        int bucket = Math.min(Math.max(distanceCM, 0), k_bucketCount - 1);
+        if (m_windowFill == m_windowSize) {
+            addToTree(m_window[m_windowIndex], -1);
+        } else {
+            m_windowFill++;
+        }
+        m_window[m_windowIndex] = bucket;
+        addToTree(bucket, 1);
+        m_windowIndex = (m_windowIndex + 1) % m_windowSize;
+
+        double median;
+        if ((m_windowFill & 1) == 1) {
+            median = findRank((m_windowFill + 1) / 2);
+        } else {
+            median = (findRank(m_windowFill / 2) + findRank(m_windowFill / 2 + 1)) / 2.0;
+        }
+
+        double filtered;
+        if (!m_hasSample || m_timeConstant == 0) {
+            filtered = median;
+        } else {
+            double dt = Math.max(timestamp - m_timestamp, 0);
+            filtered = m_filtered + dt / (m_timeConstant + dt) * (median - m_filtered);
+        }
+
+        m_median = median;
+        m_filtered = filtered;
+        m_timestamp = timestamp;
+        m_hasSample = true;
+        return true;
+    }
+
+    /**
+     * Gets the output of every stage.
+     *
+     * @return the filtered distance in cm.
+     */
+    public double getFilteredCM() {
+        return m_filtered;
+    }
+
+    /**
+     * Gets the window median, before the moving average.
+     *
+     * @return the median distance in cm.
+     */
+    public double getMedianCM() {
+        return m_median;
+    }
+
+    /**
+     * Gets the time of the latest sample that made it through the gate.
+     *
+     * @return the FPGA time in seconds.
+     */
+    public double getTimestamp() {
+        return m_timestamp;
+    }
+
+    /**
+     * Gets the amount of samples the rate gate has thrown out.
+     */
+    public long getRejectedCount() {
+        return m_rejectedCount;
+    }
+
+    private void addToTree(int bucket, int change) {
+        for (int i = bucket + 1; i <= k_bucketCount; i += i & -i) {
+            m_tree[i] += change;
+        }
+    }
+
+    /**
+     * Finds the distance of the sample with the given rank by walking down the tree from the highest power of two.
+     *
+     * @param rank from 1 (smallest) to the amount of samples in the window.
+     */
+    private int findRank(int rank) {
+        int position = 0;
+        for (int step = k_bucketCount; step > 0; step >>= 1) {
+            if (position + step <= k_bucketCount && m_tree[position + step] < rank) {
+                position += step;
+                rank -= m_tree[position];
+            }
+        }
+        return position;
+    }
+}
\ No newline at end of file
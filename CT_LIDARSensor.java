@@ -6,50 +6,239 @@
 package frc.robot.Toolkit;
 
 import java.nio.ByteBuffer;
+import java.util.function.Supplier;
 
 import edu.wpi.first.hal.I2CJNI;
 import edu.wpi.first.wpilibj.I2C.Port;
+import edu.wpi.first.wpilibj.Timer;
 
 public class CT_LIDARSensor {
 
 	private static final byte k_deviceAddress = 0x62;
+	private static final int k_statusRegister = 0x01;
+	private static final int k_distanceRegister = 0x8f; // 0x0f with the auto increment bit, reads both distance bytes
+	private static final int k_statusBusy = 0x01;
+	private static final int k_statusInvalidSignal = 0x08;
+	private static final int k_statusHealth = 0x20;
+	/**
+	 * Times a failed transaction is tried again before the read is given up on.
+	 */
+	private static final int k_maxRetries = 2;
+	/**
+	 * The LIDAR-Lite measures about every 10ms when running on its own, so polling faster only reads the same value twice.
+	 */
+	private static final double k_pollPeriod = 0.01;
 	private final byte m_port;
 	private final ByteBuffer m_buffer = ByteBuffer.allocateDirect(2);
+	private final ByteBuffer m_received = ByteBuffer.allocateDirect(2);
+
+	// Only written on the bus thread, volatile so they can be read from any thread.
+	private volatile long m_errorCount;
+	private volatile long m_retryCount;
+	private volatile long m_invalidCount;
+
+	private final CT_LIDARFilter m_filter = new CT_LIDARFilter();
+	private final CT_I2CBus m_bus;
+	private final CT_I2CBus.Device m_device;
+	private final Supplier<Boolean> m_readMeasurement = this::readMeasurement;
+	private CT_I2CBus.PeriodicRead m_poll;
+	private volatile boolean m_isContinuous;
+	/**
+	 * The latest reading from the background thread, the distance in cm in the low 16 bits and the FPGA time
+	 * in microseconds above it. Packed into one volatile long so it is written and read whole, without a lock.
+	 */
+	private volatile long m_latest;
 
 	public CT_LIDARSensor(Port port) {
 		m_port = (byte) port.value;
 		I2CJNI.i2CInitialize(m_port);
+		m_bus = CT_I2CBus.get(port);
+		m_device = m_bus.register("LIDAR 0x62", CT_I2CBus.k_normalPriority);
 	}
 
 	public void startMeasuring() {
-		writeRegister(0x04, 0x08 | 32); // default plus bit 5
-		writeRegister(0x11, 0xff);
-		writeRegister(0x00, 0x04);
+		m_bus.execute(m_device, () -> {
+			writeRegister(0x04, 0x08 | 32); // default plus bit 5
+			writeRegister(0x11, 0xff);
+			return writeRegister(0x00, 0x04);
+		});
 	}
 
 	public void stopMeasuring() {
-		writeRegister(0x11, 0x00);
+		m_bus.execute(m_device, () -> writeRegister(0x11, 0x00));
+	}
+
+	/**
+	 * Starts the LIDAR measuring on its own and reads every new distance on the I2C bus thread.
+	 * After this, getting the distance never waits on the I2C bus.
+	 */
+	public synchronized void startContinuous() {
+		if (!m_isContinuous) {
+			startMeasuring();
+			m_poll = m_bus.addPeriodic(m_device, k_pollPeriod, this::readMeasurement);
+			m_isContinuous = true;
+		}
+	}
+
+	/**
+	 * Stops the background thread and the LIDAR's own measuring. Getting the distance goes back to reading it directly.
+	 */
+	public synchronized void stopContinuous() {
+		if (m_isContinuous) {
+			m_poll.cancel();
+			m_isContinuous = false;
+			stopMeasuring();
+		}
+	}
+
+	public boolean isContinuous() {
+		return m_isContinuous;
 	}
 
+	/**
+	 * Gets the distance. In continuous mode this is the latest background reading, otherwise it is read from the sensor.
+	 * If the sensor is still measuring or the read fails, the last good distance is returned.
+	 */
 	public double getDistanceCM() {
-		return readShort(0x8f);
+		if (!m_isContinuous) {
+			m_bus.execute(m_device, m_readMeasurement);
+		}
+		return m_latest & 0xffff;
 	}
 
 	public double getDistanceInches() {
-		return (double)(readShort(0x8f)) / 2.54;
+		return getDistanceCM() / 2.54;
 	}
 
-	private int writeRegister(int address, int value) {
-		m_buffer.put(0, (byte) address);
-		m_buffer.put(1, (byte) value);
+	/**
+	 * Gets the filter every good reading goes through. Configure it with its setters,
+	 * by default it is a 5 sample median with no rate gate or smoothing.
+	 */
+	public CT_LIDARFilter getFilter() {
+		return m_filter;
+	}
 
-		return I2CJNI.i2CWrite(m_port, k_deviceAddress, m_buffer, (byte) 2);
+	/**
+	 * Gets the filtered distance. Outside of continuous mode the filter only gets a sample when getDistanceCM() is called.
+	 */
+	public double getFilteredDistanceCM() {
+		return m_filter.getFilteredCM();
 	}
 
-	private short readShort(int address) {
+	public double getFilteredDistanceInches() {
+		return m_filter.getFilteredCM() / 2.54;
+	}
+
+	/**
+	 * Gets the amount of reads that failed on the bus, even after retrying.
+	 */
+	public long getErrorCount() {
+		return m_errorCount;
+	}
+
+	/**
+	 * Gets the amount of bus transactions that failed and were tried again.
+	 */
+	public long getRetryCount() {
+		return m_retryCount;
+	}
+
+	/**
+	 * Gets the amount of reads skipped because the measurement wasn't finished or had no valid signal.
+	 */
+	public long getInvalidCount() {
+		return m_invalidCount;
+	}
+
+	public void resetCounters() {
+		m_bus.execute(m_device, () -> {
+			m_errorCount = 0;
+			m_retryCount = 0;
+			m_invalidCount = 0;
+			return null;
+		});
+	}
+
+	/**
+	 * Gets the timing of this sensor's transactions on the I2C bus.
+	 */
+	public CT_I2CBus.Device getBusDevice() {
+		return m_device;
+	}
+
+	/**
+	 * Gets when the latest good reading was taken.
+	 *
+	 * @return the FPGA time in seconds, or 0 if there hasn't been a reading yet.
+	 */
+	public double getTimestamp() {
+		return (m_latest >>> 16) / 1e6;
+	}
+
+	/**
+	 * Gets how long ago the latest good reading was taken.
+	 *
+	 * @return the age in seconds, or infinity if there hasn't been a reading yet.
+	 */
+	public double getReadingAge() {
+		long latest = m_latest;
+		if (latest == 0) {
+			return Double.POSITIVE_INFINITY;
+		}
+		return Timer.getFPGATimestamp() - (latest >>> 16) / 1e6;
+	}
+
+	/**
+	 * Reads the distance if the status register says a good measurement is ready, and publishes it.
+	 * Busy or invalid measurements are skipped, so the last good distance stays. Only run on the bus thread.
+	 *
+	 * @return if a new distance was read.
+	 */
+	private boolean readMeasurement() {
+		if (!transaction(k_statusRegister, 1)) {
+			return false;
+		}
+		int status = m_received.get(0);
+		if ((status & k_statusBusy) != 0 || (status & k_statusInvalidSignal) != 0 || (status & k_statusHealth) == 0) {
+			m_invalidCount++;
+			return false;
+		}
+
+		if (!transaction(k_distanceRegister, 2)) {
+			return false;
+		}
+		int distance = m_received.getShort(0) & 0xffff;
+		double timestamp = Timer.getFPGATimestamp();
+		m_latest = ((long) (timestamp * 1e6) << 16) | distance;
+		m_filter.update(distance, timestamp);
+		return true;
+	}
+
+	/**
+	 * Reads from a register with the write and read in one combined transaction, trying again if it fails.
+	 */
+	private boolean transaction(int address, int count) {
 		m_buffer.put(0, (byte) address);
-		I2CJNI.i2CWrite(m_port, k_deviceAddress, m_buffer, (byte) 1);
-		I2CJNI.i2CRead(m_port, k_deviceAddress, m_buffer, (byte) 2);
-		return m_buffer.getShort(0);
+		for (int attempt = 0; attempt <= k_maxRetries; attempt++) {
+			if (attempt > 0) {
+				m_retryCount++;
+			}
+			if (I2CJNI.i2CTransaction(m_port, k_deviceAddress, m_buffer, (byte) 1, m_received, (byte) count) >= 0) {
+				return true;
+			}
+		}
+		m_errorCount++;
+		return false;
+	}
+
+	private int writeRegister(int address, int value) {
+		m_buffer.put(0, (byte) address);
+		m_buffer.put(1, (byte) value);
+
+		int result = I2CJNI.i2CWrite(m_port, k_deviceAddress, m_buffer, (byte) 2);
+		if (result < 0) {
+			m_errorCount++;
+		}
+		return result;
 	}
 };
\ No newline at end of file
@@ -0,0 +1,258 @@
+package frc.robot.Toolkit;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+
+import frc.robot.Toolkit.CT_Gyro.GyroType;
+
+/**
+ * A gyro backend that replays scripted or recorded motion, for testing and benchmarking heading code on a laptop.
+ * It keeps its own clock, which only moves when step() is called, so a whole match can be run in a fraction
+ * of a second and every run with the same seed gives the exact same readings.
+ *
+ * Example:
+ * CT_SimulatedGyro sim = new CT_SimulatedGyro(42).addSegment(1.0, 90).addSegment(2.0, 0).setNoise(0.1, 0.5).setDrift(0.01);
+ * CT_Gyro gyro = new CT_Gyro(sim, false);
+ * for (...) { sim.step(0.02); gyro.update(); ... }
+ *
+ * Nothing in this class touches the HAL, so it runs without the robot native libraries.
+ */
+public class CT_SimulatedGyro implements CT_GyroBackend {
+
+    private final Random m_random;
+
+    private double m_time;
+    private double m_trueYaw;
+    private double m_trueRate;
+    private double m_pitch;
+    private double m_roll;
+    private double m_yawOffset;
+    private double m_driftOffset;
+
+    private double m_yawNoise;
+    private double m_rateNoise;
+    private double m_drift;
+
+    // Scripted motion, constant rate segments played back in order.
+    private double[] m_segmentDurations = new double[0];
+    private double[] m_segmentRates = new double[0];
+    private int m_segmentIndex;
+    private double m_segmentElapsed;
+
+    // Recorded motion, played back instead of the segments when set.
+    private double[] m_recordedTimes;
+    private double[] m_recordedYaws;
+    private int m_recordedIndex;
+
+    /**
+     * Creates a simulated gyro that stays still until motion is added.
+     *
+     * @param seed seed for the noise, the same seed always gives the same readings.
+     */
+    public CT_SimulatedGyro(long seed) {
+        m_random = new Random(seed);
+    }
+
+    /**
+     * Adds a segment of constant rate motion after the segments already added.
+     * Once every segment has played, the gyro stays still.
+     *
+     * @param seconds how long the segment lasts.
+     * @param rate the yaw rate in degrees per second during the segment.
+     */
+    public CT_SimulatedGyro addSegment(double seconds, double rate) {
+        int count = m_segmentDurations.length;
+        double[] durations = new double[count + 1];
+        double[] rates = new double[count + 1];
+        System.arraycopy(m_segmentDurations, 0, durations, 0, count);
+        System.arraycopy(m_segmentRates, 0, rates, 0, count);
+        durations[count] = seconds;
+        rates[count] = rate;
+        m_segmentDurations = durations;
+        m_segmentRates = rates;
+        return this;
+    }
+
+    /**
+     * Replays a recorded yaw instead of the scripted segments. The yaw is interpolated between samples
+     * and the rate is the slope between them. After the last sample, the yaw stays at the last value.
+     *
+     * @param times sample times in seconds, increasing, starting from the simulation start.
+     * @param yaws the unwrapped yaw in degrees at each time.
+     */
+    public CT_SimulatedGyro setRecording(double[] times, double[] yaws) {
+        if (times.length != yaws.length || times.length == 0) {
+            throw new IllegalArgumentException("CT_SimulatedGyro recording needs the same amount of times and yaws");
+        }
+        m_recordedTimes = times.clone();
+        m_recordedYaws = yaws.clone();
+        m_recordedIndex = 0;
+        m_trueYaw = m_recordedYaws[0];
+        return this;
+    }
+
+    /**
+     * Replays a recording from a file with one "time,yaw" pair per line. Lines starting with # are skipped.
+     *
+     * @return if the file was read.
+     */
+    public boolean loadRecording(File file) {
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+
+        double[] times = new double[lines.size()];
+        double[] yaws = new double[lines.size()];
+        int count = 0;
+        for (String line : lines) {
+            String[] parts = line.trim().split(",");
+            if (parts.length >= 2 && !parts[0].startsWith("#")) {
+                times[count] = Double.parseDouble(parts[0]);
+                yaws[count] = Double.parseDouble(parts[1]);
+                count++;
+            }
+        }
+        if (count == 0) {
+            return false;
+        }
+
+        double[] trimmedTimes = new double[count];
+        double[] trimmedYaws = new double[count];
+        System.arraycopy(times, 0, trimmedTimes, 0, count);
+        System.arraycopy(yaws, 0, trimmedYaws, 0, count);
+        setRecording(trimmedTimes, trimmedYaws);
+        return true;
+    }
+
+    /**
+     * Sets the random noise added to each reading.
+     *
+     * @param yawStandardDeviation standard deviation of the yaw noise in degrees.
+     * @param rateStandardDeviation standard deviation of the rate noise in degrees per second.
+     */
+    public CT_SimulatedGyro setNoise(double yawStandardDeviation, double rateStandardDeviation) {
+        m_yawNoise = yawStandardDeviation;
+        m_rateNoise = rateStandardDeviation;
+        return this;
+    }
+
+    /**
+     * Sets how fast the reported yaw drifts away from the true yaw, like a real gyro's bias.
+     *
+     * @param degreesPerSecond the drift.
+     */
+    public CT_SimulatedGyro setDrift(double degreesPerSecond) {
+        m_drift = degreesPerSecond;
+        return this;
+    }
+
+    /**
+     * Sets the pitch and roll the gyro reports.
+     */
+    public CT_SimulatedGyro setPitchRoll(double pitch, double roll) {
+        m_pitch = pitch;
+        m_roll = roll;
+        return this;
+    }
+
+    /**
+     * Moves the simulation clock forward and plays the motion for that time.
+     *
+     * @param seconds how far to move the clock.
+     */
+    public void step(double seconds) {
+        double startYaw = m_trueYaw;
+        m_time += seconds;
+
+        if (m_recordedTimes != null) {
+            while (m_recordedIndex < m_recordedTimes.length - 1 && m_recordedTimes[m_recordedIndex + 1] <= m_time) {
+                m_recordedIndex++;
+            }
+            if (m_recordedIndex < m_recordedTimes.length - 1 && m_time >= m_recordedTimes[m_recordedIndex]) {
+                double span = m_recordedTimes[m_recordedIndex + 1] - m_recordedTimes[m_recordedIndex];
+                double slope = (m_recordedYaws[m_recordedIndex + 1] - m_recordedYaws[m_recordedIndex]) / span;
+                m_trueYaw = m_recordedYaws[m_recordedIndex] + slope * (m_time - m_recordedTimes[m_recordedIndex]);
+                m_trueRate = slope;
+            } else {
+                m_trueYaw = m_time < m_recordedTimes[0] ? m_recordedYaws[0] : m_recordedYaws[m_recordedIndex];
+                m_trueRate = 0;
+            }
+            return;
+        }
+
+        // Segments can end partway through a step, so the step is split at each boundary.
+        double remaining = seconds;
+        while (remaining > 0 && m_segmentIndex < m_segmentDurations.length) {
+            double left = m_segmentDurations[m_segmentIndex] - m_segmentElapsed;
+            double used = Math.min(left, remaining);
+            m_trueYaw += m_segmentRates[m_segmentIndex] * used;
+            m_segmentElapsed += used;
+            remaining -= used;
+            if (m_segmentElapsed >= m_segmentDurations[m_segmentIndex]) {
+                m_segmentIndex++;
+                m_segmentElapsed = 0;
+            }
+        }
+        m_trueRate = seconds > 0 ? (m_trueYaw - startYaw) / seconds : 0;
+    }
+
+    /**
+     * Gets the simulation time.
+     *
+     * @return the time in seconds since the simulation started.
+     */
+    public double getTime() {
+        return m_time;
+    }
+
+    /**
+     * Gets the yaw without noise or drift, for checking how far off the code under test is.
+     *
+     * @return the unwrapped true yaw in degrees.
+     */
+    public double getTrueYaw() {
+        return m_trueYaw - m_yawOffset;
+    }
+
+    @Override
+    public void read(double[] yawPitchRollRate) {
+        yawPitchRollRate[0] = m_trueYaw - m_yawOffset + m_drift * m_time - m_driftOffset + m_random.nextGaussian() * m_yawNoise;
+        yawPitchRollRate[1] = m_pitch;
+        yawPitchRollRate[2] = m_roll;
+        yawPitchRollRate[3] = m_trueRate + m_drift + m_random.nextGaussian() * m_rateNoise;
+    }
+
+    @Override
+    public void resetYaw() {
+        m_yawOffset = m_trueYaw;
+        m_driftOffset = m_drift * m_time;
+    }
+
+    @Override
+    public boolean hasAttitude() {
+        return true;
+    }
+
+    @Override
+    public boolean isCalibrated() {
+        return true;
+    }
+
+    @Override
+    public double getTimestamp() {
+        return m_time;
+    }
+
+    @Override
+    public GyroType getType() {
+        return GyroType.Simulated;
+    }
+}
@@ -0,0 +1,439 @@
+package frc.robot.Toolkit;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+import edu.wpi.first.wpilibj.Timer;
+import edu.wpi.first.wpilibj2.command.Command;
+import edu.wpi.first.wpilibj2.command.CommandScheduler;
+
+import frc.robot.Toolkit.CT_CommandToggler.CommandState;
+
+/**
+ * A state machine for sequences that outgrow a CT_CommandToggler, such as a superstructure with many positions.
+ * Every state has a name, a command that runs while in it and optional entry and exit commands.
+ * Transitions go from one state to another, either when their guard is true or when requested.
+ *
+ * The CommandState of a state works the same as in a CT_CommandToggler. Interruptible commands are cancelled when the state is left,
+ * Precedented commands must finish before any transition out of the state can happen.
+ *
+ * The builder compiles everything into arrays indexed by state, so a loop only checks the guards of the current state's transitions
+ * and a transition is a few array reads, without any lookups or allocation.
+ * Only meant to be used from the robot thread.
+ *
+ * Use:
+ * CT_StateMachine arm = new CT_StateMachine.Builder()
+ *     .addState("Stowed", new StowArm())
+ *     .addState("Intaking", new IntakeBall(), CommandState.Interruptible)
+ *     .addState("Scoring", new ScoreBall(), CommandState.Precedented)
+ *     .onExit("Scoring", new StowArm())
+ *     .addTransition("Stowed", "Intaking", OI::getXboxA)
+ *     .addTransition("Intaking", "Scoring", intake::hasBall)
+ *     .addTransition("Scoring", "Stowed")
+ *     .build();
+ * arm.start();
+ */
+public class CT_StateMachine {
+
+    /**
+     * Returned when there is no state, such as before the machine is started.
+     */
+    public static final int k_noState = -1;
+
+    private final String[] m_names;
+    private final HashMap<String, Integer> m_indices;
+    private final Command[] m_commands;
+    private final CommandState[] m_commandStates;
+    private final Command[] m_entryCommands;
+    private final Command[] m_exitCommands;
+
+    // The guarded transitions out of state s are m_transitionStart[s] up to m_transitionStart[s + 1].
+    private final int[] m_transitionStart;
+    private final int[] m_transitionTarget;
+    private final BooleanSupplier[] m_transitionGuard;
+    // Whether request(from, to) is allowed, at [from * stateCount + to].
+    private final boolean[] m_allowed;
+
+    private final int m_initialState;
+    private int m_currentState = k_noState;
+    private double m_enteredTime;
+    private long m_transitionCount;
+    private long m_blockedCount;
+
+    /**
+     * Collects the states and transitions of a CT_StateMachine. States can be referred to before they're added,
+     * every name is checked when build() is called.
+     */
+    public static class Builder {
+        private final List<String> m_names = new ArrayList<>();
+        private final HashMap<String, Integer> m_indices = new HashMap<>();
+        private final List<Command> m_commands = new ArrayList<>();
+        private final List<CommandState> m_commandStates = new ArrayList<>();
+        private final HashMap<String, Command> m_entryCommands = new HashMap<>();
+        private final HashMap<String, Command> m_exitCommands = new HashMap<>();
+        private final List<String[]> m_transitions = new ArrayList<>();
+        private final List<BooleanSupplier> m_guards = new ArrayList<>();
+        private String m_initialState;
+        private boolean m_runEveryLoop = true;
+
+        /**
+         * Adds a state with a Normal command, which keeps running after the state is left.
+         *
+         * @param name the name of the state, must be unique.
+         * @param command run when the state is entered, can be null.
+         */
+        public Builder addState(String name, Command command) {
+            return addState(name, command, CommandState.Normal);
+        }
+
+        /**
+         * Adds a state.
+         *
+         * @param name the name of the state, must be unique.
+         * @param command run when the state is entered, can be null.
+         * @param state what happens to the command when the state is left.
+         */
+        public Builder addState(String name, Command command, CommandState state) {
+            if (m_indices.containsKey(name)) {
+                throw new IllegalArgumentException("CT_StateMachine already has a state named " + name);
+            }
+            m_indices.put(name, m_names.size());
+            m_names.add(name);
+            m_commands.add(command);
+            m_commandStates.add(state);
+            return this;
+        }
+
+        /**
+         * Sets a command to schedule every time the state is entered, before the state's own command.
+         */
+        public Builder onEntry(String state, Command command) {
+            m_entryCommands.put(state, command);
+            return this;
+        }
+
+        /**
+         * Sets a command to schedule every time the state is left.
+         */
+        public Builder onExit(String state, Command command) {
+            m_exitCommands.put(state, command);
+            return this;
+        }
+
+        /**
+         * Adds a transition that happens whenever the guard is true while in the from state.
+         * Guards are checked in the order they were added, the first true one is taken.
+         * The transition can also be requested.
+         *
+         * @param from the state the transition leaves.
+         * @param to the state the transition enters.
+         * @param guard checked once a loop, only while in the from state.
+         */
+        public Builder addTransition(String from, String to, BooleanSupplier guard) {
+            m_transitions.add(new String[] {from, to});
+            m_guards.add(guard);
+            return this;
+        }
+
+        /**
+         * Adds a transition that only happens when requested.
+         *
+         * @param from the state the transition leaves.
+         * @param to the state the transition enters.
+         */
+        public Builder addTransition(String from, String to) {
+            return addTransition(from, to, null);
+        }
+
+        /**
+         * Adds a transition from every state into one state, such as a stow or an emergency stop.
+         *
+         * @param to the state the transitions enter.
+         * @param guard checked once a loop while in any other state, can be null to only allow requests.
+         */
+        public Builder addTransitionFromAny(String to, BooleanSupplier guard) {
+            m_transitions.add(new String[] {null, to});
+            m_guards.add(guard);
+            return this;
+        }
+
+        /**
+         * Sets the state start() enters. Defaults to the first state added.
+         */
+        public Builder setInitialState(String name) {
+            m_initialState = name;
+            return this;
+        }
+
+        /**
+         * Sets whether the machine checks its guards from the CommandScheduler every loop. True by default,
+         * if false, update() has to be called instead.
+         */
+        public Builder setRunEveryLoop(boolean on) {
+            m_runEveryLoop = on;
+            return this;
+        }
+
+        /**
+         * Compiles the states and transitions into a CT_StateMachine.
+         *
+         * @throws IllegalArgumentException if there are no states or a name doesn't match a state.
+         */
+        public CT_StateMachine build() {
+            if (m_names.isEmpty()) {
+                throw new IllegalArgumentException("CT_StateMachine needs at least one state");
+            }
+            for (String state : m_entryCommands.keySet()) {
+                indexOf(state);
+            }
+            for (String state : m_exitCommands.keySet()) {
+                indexOf(state);
+            }
+            CT_StateMachine machine = new CT_StateMachine(this);
+            if (m_runEveryLoop) {
+                CommandScheduler.getInstance().addButton(machine::update);
+            }
+            return machine;
+        }
+
+        private int indexOf(String name) {
+            Integer index = m_indices.get(name);
+            if (index == null) {
+                throw new IllegalArgumentException("CT_StateMachine has no state named " + name);
+            }
+            return index;
+        }
+    }
+
+    private CT_StateMachine(Builder builder) {
+        int count = builder.m_names.size();
+        m_names = builder.m_names.toArray(new String[count]);
+        m_indices = new HashMap<>(builder.m_indices);
+        m_commands = builder.m_commands.toArray(new Command[count]);
+        m_commandStates = builder.m_commandStates.toArray(new CommandState[count]);
+        m_entryCommands = new Command[count];
+        m_exitCommands = new Command[count];
+        for (int i = 0; i < count; i++) {
+            m_entryCommands[i] = builder.m_entryCommands.get(m_names[i]);
+            m_exitCommands[i] = builder.m_exitCommands.get(m_names[i]);
+        }
+        m_initialState = builder.m_initialState == null ? 0 : builder.indexOf(builder.m_initialState);
+
+        // Resolve every transition, expanding the ones from any state, then lay the guarded ones out by state.
+        m_allowed = new boolean[count * count];
+        int[] guardedCount = new int[count];
+        List<int[]> guarded = new ArrayList<>();
+        List<BooleanSupplier> guards = new ArrayList<>();
+        for (int i = 0; i < builder.m_transitions.size(); i++) {
+            String[] names = builder.m_transitions.get(i);
+            BooleanSupplier guard = builder.m_guards.get(i);
+            int to = builder.indexOf(names[1]);
+            int fromFirst = names[0] == null ? 0 : builder.indexOf(names[0]);
+            int fromLast = names[0] == null ? count - 1 : fromFirst;
+            for (int from = fromFirst; from <= fromLast; from++) {
+                if (from == to) {
+                    continue;
+                }
+                m_allowed[from * count + to] = true;
+                if (guard != null) {
+                    guarded.add(new int[] {from, to});
+                    guards.add(guard);
+                    guardedCount[from]++;
+                }
+            }
+        }
+
+        m_transitionStart = new int[count + 1];
+        for (int s = 0; s < count; s++) {
+            m_transitionStart[s + 1] = m_transitionStart[s] + guardedCount[s];
+        }
+        m_transitionTarget = new int[guarded.size()];
+        m_transitionGuard = new BooleanSupplier[guarded.size()];
+        int[] next = new int[count];
+        for (int i = 0; i < guarded.size(); i++) {
+            int from = guarded.get(i)[0];
+            int slot = m_transitionStart[from] + next[from]++;
+            m_transitionTarget[slot] = guarded.get(i)[1];
+            m_transitionGuard[slot] = guards.get(i);
+        }
+    }
+
+    /**
+     * Enters the initial state. Does nothing if the machine is already running.
+     */
+    public void start() {
+        if (m_currentState == k_noState) {
+            enter(m_initialState);
+        }
+    }
+
+    /**
+     * Leaves the current state without entering another, running its exit command. Guards aren't checked until start() is called again.
+     */
+    public void stop() {
+        if (m_currentState != k_noState) {
+            exit(m_currentState);
+            m_currentState = k_noState;
+        }
+    }
+
+    /**
+     * Checks the guards of the current state's transitions and takes the first one that is true.
+     * Guards aren't checked while a Precedented command is holding the state.
+     * Done automatically every loop unless the machine was built with setRunEveryLoop(false).
+     */
+    public void update() {
+        int current = m_currentState;
+        // A blocked state can't be left, so there's no point checking its guards.
+        if (current == k_noState || isBlocked(current)) {
+            return;
+        }
+        for (int i = m_transitionStart[current]; i < m_transitionStart[current + 1]; i++) {
+            if (m_transitionGuard[i].getAsBoolean()) {
+                transition(m_transitionTarget[i]);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Goes to a state if there is a transition to it from the current state,
+     * unless the current state is Precedented and its command hasn't finished.
+     *
+     * @param state the index of the state, from getStateIndex().
+     * @return true if the state was entered.
+     */
+    public boolean request(int state) {
+        int current = m_currentState;
+        if (current == k_noState || state < 0 || state >= m_names.length || !m_allowed[current * m_names.length + state]) {
+            return false;
+        }
+        return transition(state);
+    }
+
+    /**
+     * Goes to a state if there is a transition to it from the current state. Looks up the name,
+     * so cache getStateIndex() for requests made every loop.
+     *
+     * @param state the name of the state.
+     * @return true if the state was entered.
+     */
+    public boolean request(String state) {
+        return request(getStateIndex(state));
+    }
+
+    /**
+     * Gets if a transition from the current state to the state is allowed and not blocked.
+     */
+    public boolean canRequest(int state) {
+        int current = m_currentState;
+        return current != k_noState && state >= 0 && state < m_names.length
+            && m_allowed[current * m_names.length + state] && !isBlocked(current);
+    }
+
+    /**
+     * Gets the index of a state, used to request it without looking up the name.
+     *
+     * @return the index, or k_noState if there is no state with the name.
+     */
+    public int getStateIndex(String name) {
+        Integer index = m_indices.get(name);
+        return index == null ? k_noState : index;
+    }
+
+    /**
+     * Gets the index of the current state.
+     *
+     * @return the index, or k_noState if the machine isn't running.
+     */
+    public int getState() {
+        return m_currentState;
+    }
+
+    /**
+     * Gets the name of the current state.
+     *
+     * @return the name, or null if the machine isn't running.
+     */
+    public String getStateName() {
+        return m_currentState == k_noState ? null : m_names[m_currentState];
+    }
+
+    public String getStateName(int state) {
+        return m_names[state];
+    }
+
+    public int getStateCount() {
+        return m_names.length;
+    }
+
+    /**
+     * Gets if the machine is in the state.
+     */
+    public boolean isIn(int state) {
+        return m_currentState == state;
+    }
+
+    /**
+     * Gets how long the machine has been in the current state.
+     *
+     * @return the time in seconds, 0 if the machine isn't running.
+     */
+    public double getTimeInState() {
+        return m_currentState == k_noState ? 0 : Timer.getFPGATimestamp() - m_enteredTime;
+    }
+
+    /**
+     * Gets the amount of transitions taken, not counting start().
+     */
+    public long getTransitionCount() {
+        return m_transitionCount;
+    }
+
+    /**
+     * Gets the amount of requests that were held back by a Precedented command.
+     */
+    public long getBlockedCount() {
+        return m_blockedCount;
+    }
+
+    private boolean isBlocked(int state) {
+        Command command = m_commands[state];
+        return m_commandStates[state] == CommandState.Precedented && command != null && command.isScheduled();
+    }
+
+    private boolean transition(int state) {
+        int current = m_currentState;
+        if (isBlocked(current)) {
+            m_blockedCount++;
+            return false;
+        }
+        exit(current);
+        enter(state);
+        m_transitionCount++;
+        return true;
+    }
+
+    private void exit(int state) {
+        Command command = m_commands[state];
+        if (command != null && m_commandStates[state] == CommandState.Interruptible) {
+            command.cancel();
+        }
+        if (m_exitCommands[state] != null) {
+            m_exitCommands[state].schedule();
+        }
+    }
+
+    private void enter(int state) {
+        m_currentState = state;
+        m_enteredTime = Timer.getFPGATimestamp();
+        if (m_entryCommands[state] != null) {
+            m_entryCommands[state].schedule();
+        }
+        if (m_commands[state] != null) {
+            m_commands[state].schedule();
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,294 @@
+package frc.robot.Toolkit;
+
+import java.util.Arrays;
+
+import edu.wpi.first.wpilibj.Timer;
+import edu.wpi.first.wpilibj.smartdashboard.SmartDashboard;
+import edu.wpi.first.wpilibj2.command.CommandScheduler;
+
+/**
+ * Records the transitions of a CT_CommandToggler, so the time from a toggle press to the next command running,
+ * and the time a Precedented command holds up the toggler, can be tuned from real matches.
+ *
+ * Events go into ring buffers allocated up front, so recording never allocates. Two histograms are kept for every command:
+ * the latency from the first request that wasn't served to that command being scheduled, and how long that command blocked
+ * a transition, from the first blocked request to it finishing.
+ *
+ * The histograms are published to SmartDashboard under "name/Latency i" and "name/Blocked i", one number per bucket.
+ * Only meant to be used from the robot thread.
+ */
+public class CT_TransitionLog {
+
+    /**
+     * Something that happened in the toggler.
+     */
+    public enum Event {
+        /**
+         * A toggle button, jump or startOnEnable asked for a command.
+         */
+        Requested,
+        /**
+         * A request was ignored because a Precedented command hadn't finished.
+         */
+        Blocked,
+        /**
+         * An Interruptible command was cancelled to make way for the next one.
+         */
+        Cancelled,
+        /**
+         * The toggler moved to a command and scheduled it, or moved to an empty slot.
+         */
+        Scheduled,
+        /**
+         * A command in the toggler finished or was interrupted.
+         */
+        Finished
+    }
+
+    /**
+     * The upper limit of each histogram bucket in seconds. Anything longer goes in one more bucket at the end.
+     */
+    public static final double[] k_bucketLimits = {0.001, 0.002, 0.005, 0.01, 0.02, 0.05, 0.1, 0.2, 0.5, 1, 2, 5};
+
+    public static final int k_defaultCapacity = 256;
+
+    private static final double k_publishPeriod = 0.5;
+
+    private static final Event[] k_events = Event.values();
+
+    private final String m_name;
+    private final double[] m_times;
+    private final byte[] m_events;
+    private final int[] m_from;
+    private final int[] m_to;
+    private long m_count;
+
+    private long[][] m_latency = new long[0][];
+    private long[][] m_blocked = new long[0][];
+    // Reused when publishing, so publishing doesn't allocate either.
+    private double[][] m_published = new double[0][];
+    private String[] m_latencyKeys = new String[0];
+    private String[] m_blockedKeys = new String[0];
+
+    private double m_firstRequestTime = Double.NaN;
+    private double m_blockedSince = Double.NaN;
+    private int m_blockingIndex = -1;
+    private double m_lastPublish;
+
+    /**
+     * Creates a log that keeps the latest k_defaultCapacity events.
+     *
+     * @param name the SmartDashboard key the histograms are published under.
+     */
+    public CT_TransitionLog(String name) {
+        this(name, k_defaultCapacity);
+    }
+
+    /**
+     * @param name the SmartDashboard key the histograms are published under.
+     * @param capacity how many of the latest events are kept.
+     */
+    public CT_TransitionLog(String name, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("CT_TransitionLog capacity must be positive");
+        }
+        m_name = name;
+        m_times = new double[capacity];
+        m_events = new byte[capacity];
+        m_from = new int[capacity];
+        m_to = new int[capacity];
+        CommandScheduler.getInstance().addButton(this::publishIfDue);
+    }
+
+    /**
+     * Makes room in the histograms for commands up to the index. Called by the toggler when a command is added.
+     */
+    void ensureIndex(int index) {
+        int count = m_latency.length;
+        if (index < count) {
+            return;
+        }
+        long[][] latency = Arrays.copyOf(m_latency, index + 1);
+        long[][] blocked = Arrays.copyOf(m_blocked, index + 1);
+        double[][] published = Arrays.copyOf(m_published, index + 1);
+        String[] latencyKeys = Arrays.copyOf(m_latencyKeys, index + 1);
+        String[] blockedKeys = Arrays.copyOf(m_blockedKeys, index + 1);
+        for (int i = count; i <= index; i++) {
+            latency[i] = new long[k_bucketLimits.length + 1];
+            blocked[i] = new long[k_bucketLimits.length + 1];
+            published[i] = new double[k_bucketLimits.length + 1];
+            latencyKeys[i] = m_name + "/Latency " + i;
+            blockedKeys[i] = m_name + "/Blocked " + i;
+        }
+        m_latency = latency;
+        m_blocked = blocked;
+        m_published = published;
+        m_latencyKeys = latencyKeys;
+        m_blockedKeys = blockedKeys;
+    }
+
+    /**
+     * Records an event and updates the histograms.
+     *
+     * @param event what happened.
+     * @param from the index of the command that was current, -1 if there wasn't one.
+     * @param to the index of the command the event is about.
+     */
+    void record(Event event, int from, int to) {
+        double now = Timer.getFPGATimestamp();
+        int slot = (int) (m_count % m_times.length);
+        m_times[slot] = now;
+        m_events[slot] = (byte) event.ordinal();
+        m_from[slot] = from;
+        m_to[slot] = to;
+        m_count++;
+
+        switch (event) {
+            case Requested:
+                if (Double.isNaN(m_firstRequestTime)) {
+                    m_firstRequestTime = now;
+                }
+                break;
+            case Blocked:
+                if (Double.isNaN(m_blockedSince)) {
+                    m_blockedSince = now;
+                    m_blockingIndex = from;
+                }
+                break;
+            case Scheduled:
+                if (!Double.isNaN(m_firstRequestTime)) {
+                    add(m_latency, to, now - m_firstRequestTime);
+                    m_firstRequestTime = Double.NaN;
+                }
+                endBlock(now);
+                break;
+            case Finished:
+                if (to == m_blockingIndex) {
+                    endBlock(now);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Gets the amount of events recorded, including ones that have been overwritten.
+     */
+    public long getEventCount() {
+        return m_count;
+    }
+
+    public int getCapacity() {
+        return m_times.length;
+    }
+
+    /**
+     * Copies the kept events, newest first. Any of the arrays can be null to skip it.
+     *
+     * @param times filled with the FPGA time in seconds of each event.
+     * @param events filled with what happened.
+     * @param from filled with the index of the command that was current, -1 if there wasn't one.
+     * @param to filled with the index of the command the event is about.
+     * @return the amount of events copied.
+     */
+    public int copyEvents(double[] times, Event[] events, int[] from, int[] to) {
+        int count = (int) Math.min(m_count, m_times.length);
+        count = times == null ? count : Math.min(count, times.length);
+        count = events == null ? count : Math.min(count, events.length);
+        count = from == null ? count : Math.min(count, from.length);
+        count = to == null ? count : Math.min(count, to.length);
+        for (int i = 0; i < count; i++) {
+            int slot = (int) ((m_count - 1 - i) % m_times.length);
+            if (times != null) {
+                times[i] = m_times[slot];
+            }
+            if (events != null) {
+                events[i] = k_events[m_events[slot]];
+            }
+            if (from != null) {
+                from[i] = m_from[slot];
+            }
+            if (to != null) {
+                to[i] = m_to[slot];
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Gets the request to schedule latency histogram of a command, one count per bucket of k_bucketLimits.
+     */
+    public long[] getLatencyHistogram(int index) {
+        return index < m_latency.length ? m_latency[index].clone() : new long[k_bucketLimits.length + 1];
+    }
+
+    /**
+     * Gets the histogram of how long a command blocked transitions, one count per bucket of k_bucketLimits.
+     */
+    public long[] getBlockedHistogram(int index) {
+        return index < m_blocked.length ? m_blocked[index].clone() : new long[k_bucketLimits.length + 1];
+    }
+
+    /**
+     * Clears the events and histograms.
+     */
+    public void reset() {
+        m_count = 0;
+        for (int i = 0; i < m_latency.length; i++) {
+            Arrays.fill(m_latency[i], 0);
+            Arrays.fill(m_blocked[i], 0);
+        }
+        m_firstRequestTime = Double.NaN;
+        m_blockedSince = Double.NaN;
+        m_blockingIndex = -1;
+    }
+
+    /**
+     * Prints a line per command with its histograms through CT_Scribe.
+     */
+    public void printHistograms() {
+        for (int i = 0; i < m_latency.length; i++) {
+            CT_Scribe.printInfo(m_name + " " + i + " latency " + Arrays.toString(m_latency[i])
+                + " blocked " + Arrays.toString(m_blocked[i]));
+        }
+    }
+
+    private void endBlock(double now) {
+        if (!Double.isNaN(m_blockedSince)) {
+            add(m_blocked, m_blockingIndex, now - m_blockedSince);
+            m_blockedSince = Double.NaN;
+            m_blockingIndex = -1;
+        }
+    }
+
+    private static void add(long[][] histograms, int index, double seconds) {
+        if (index < 0 || index >= histograms.length) {
+            return;
+        }
+        int bucket = 0;
+        while (bucket < k_bucketLimits.length && seconds > k_bucketLimits[bucket]) {
+            bucket++;
+        }
+        histograms[index][bucket]++;
+    }
+
+    private void publishIfDue() {
+        double now = Timer.getFPGATimestamp();
+        if (now - m_lastPublish < k_publishPeriod) {
+            return;
+        }
+        m_lastPublish = now;
+        for (int i = 0; i < m_latency.length; i++) {
+            double[] published = m_published[i];
+            for (int bucket = 0; bucket < published.length; bucket++) {
+                published[bucket] = m_latency[i][bucket];
+            }
+            SmartDashboard.putNumberArray(m_latencyKeys[i], published);
+            for (int bucket = 0; bucket < published.length; bucket++) {
+                published[bucket] = m_blocked[i][bucket];
+            }
+            SmartDashboard.putNumberArray(m_blockedKeys[i], published);
+        }
+    }
+}
\ No newline at end of file
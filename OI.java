@@ -1,106 +1,161 @@
 package frc.robot;
 
+import edu.wpi.first.wpilibj.DriverStation;
 import edu.wpi.first.wpilibj.Joystick;
 import edu.wpi.first.wpilibj.XboxController;
+import edu.wpi.first.wpilibj.XboxController.Axis;
+import edu.wpi.first.wpilibj.XboxController.Button;
 import edu.wpi.first.wpilibj.GenericHID.RumbleType;
-
+import edu.wpi.first.wpilibj2.command.CommandScheduler;
+
+/**
+ * The Xbox controller is read once per loop into a snapshot of its buttons, axes and POV,
+ * and every getter reads from that snapshot, so buttons polled many times a loop all see the same values.
+ * The CommandScheduler refreshes the snapshot once every loop, when it polls its buttons, so construct OI
+ * before binding any buttons to have it refreshed before they are polled. Reads outside the scheduler see the latest loop's values.
+ */
 public class OI {
     private static final int kXboxChannel = 0;
+    private static final int kAxisCount = 6;
     private static XboxController m_xboxController;
 
+    private static int m_buttons;
+    private static final double[] m_axes = new double[kAxisCount];
+    private static int m_pov = -1;
+    private static boolean m_isScheduled;
+
     public OI() {
         m_xboxController = new XboxController(kXboxChannel);
+        refresh();
+        // The snapshot is static, so creating another OI mustn't read it twice a loop.
+        if (!m_isScheduled) {
+            CommandScheduler.getInstance().addButton(OI::refresh);
+            m_isScheduled = true;
+        }
+    }
+
+    /**
+     * Reads the controller into the snapshot. Done automatically once per loop by the CommandScheduler,
+     * so this only needs to be called to force a new read.
+     */
+    public static void refresh() {
+        m_buttons = DriverStation.getStickButtons(kXboxChannel);
+        // Only read what the controller has, reading past that reports an unplugged joystick warning every loop.
+        int axisCount = Math.min(DriverStation.getStickAxisCount(kXboxChannel), kAxisCount);
+        for (int axis = 0; axis < kAxisCount; axis++) {
+            m_axes[axis] = axis < axisCount ? DriverStation.getStickAxis(kXboxChannel, axis) : 0;
+        }
+        m_pov = DriverStation.getStickPOVCount(kXboxChannel) > 0 ? DriverStation.getStickPOV(kXboxChannel, 0) : -1;
+    }
+
+    private static boolean getButton(Button button) {
+        return (m_buttons & (1 << (button.value - 1))) != 0;
+    }
+
+    private static double getAxis(Axis axis) {
+        return m_axes[axis.value];
+    }
+
+    /**
+     * Gets every button from the snapshot, bit n is button n + 1.
+     */
+    public static int getXboxButtons() {
+        return m_buttons;
+    }
+
+    public static int getXboxPOV() {
+        return m_pov;
     }
 
     public static boolean getXboxAButton() {
-        return m_xboxController.getAButton();
+        return getButton(Button.kA);
     }
 
     public static boolean getXboxBButton() {
-        return m_xboxController.getBButton();
+        return getButton(Button.kB);
     }
 
     public static boolean getXboxXButton() {
-        return m_xboxController.getXButton();
+        return getButton(Button.kX);
     }
 
     public static boolean getXboxYButton() {
-        return m_xboxController.getYButton();
+        return getButton(Button.kY);
     }
 
     public static boolean getXboxStartButton() {
-        return m_xboxController.getStartButton();
+        return getButton(Button.kStart);
     }
 
     public static boolean getXboxBackButton() {
-        return m_xboxController.getBackButton();
+        return getButton(Button.kBack);
     }
 
     public static boolean getXboxRightBumper() {
-        return m_xboxController.getRightBumper();
+        return getButton(Button.kRightBumper);
     }
 
     public static boolean getXboxLeftBumper() {
-        return m_xboxController.getLeftBumper();
+        return getButton(Button.kLeftBumper);
     }
 
     public static boolean getXboxLeftJoystickPress() {
-        return m_xboxController.getLeftStickButton();
+        return getButton(Button.kLeftStick);
     }
 
     public static boolean getXboxRightJoystickPress() {
-        return m_xboxController.getRightStickButton();
+        return getButton(Button.kRightStick);
     }
 
     public static double getXboxRightTrigger() {
-        return m_xboxController.getRightTriggerAxis();
+        return getAxis(Axis.kRightTrigger);
     }
 
     public static boolean getXboxRightTriggerPressed() {
-        return m_xboxController.getRightTriggerAxis() > 0.2;
+        return getAxis(Axis.kRightTrigger) > 0.2;
     }
 
     public static double getXboxLeftTrigger() {
-        return m_xboxController.getLeftTriggerAxis();
+        return getAxis(Axis.kLeftTrigger);
     }
 
     public static boolean getXboxLeftTriggerPressed() {
-        return m_xboxController.getLeftTriggerAxis() > 0.2;
+        return getAxis(Axis.kLeftTrigger) > 0.2;
     }
 
     public static double getXboxRightJoystickX() {
-        return m_xboxController.getRightX();
+        return getAxis(Axis.kRightX);
     }
 
     public static double getXboxRightJoystickY() {
-        return m_xboxController.getRightY();
+        return getAxis(Axis.kRightY);
     }
 
     public static double getXboxLeftJoystickX() {
-        return m_xboxController.getLeftX();
+        return getAxis(Axis.kLeftX);
     }
 
     public static double getXboxLeftJoystickY() {
-        return m_xboxController.getLeftY();
+        return getAxis(Axis.kLeftY);
     }
 
     public static boolean getXboxDpadUp() {
-        int pov = m_xboxController.getPOV(0);
+        int pov = getXboxPOV();
         return (((pov >= 0) && (pov <= 45)) || ((pov >= 315) && (pov <= 360)));
     }
 
     public static boolean getXboxDpadRight() {
-        int pov = m_xboxController.getPOV(0);
+        int pov = getXboxPOV();
         return ((pov >= 45) && (pov <= 135));
     }
 
     public static boolean getXboxDpadDown() {
-        int pov = m_xboxController.getPOV(0);
+        int pov = getXboxPOV();
         return ((pov >= 135) && (pov <= 225));
     }
 
     public static boolean getXboxDpadLeft() {
-        int pov = m_xboxController.getPOV(0);
+        int pov = getXboxPOV();
         return ((pov >= 225) && (pov <= 315));
     }
 